@@ -0,0 +1,135 @@
+package pl.touk.nifi.benchmarks;
+
+import org.apache.ignite.Ignite;
+import org.apache.ignite.binary.BinaryObject;
+import org.apache.nifi.serialization.SimpleRecordSchema;
+import org.apache.nifi.serialization.record.MapRecord;
+import org.apache.nifi.serialization.record.RecordField;
+import org.apache.nifi.serialization.record.RecordFieldType;
+import org.apache.nifi.serialization.record.RecordSchema;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import pl.touk.nifi.ignite.IgniteBinaryBuilder;
+import pl.touk.nifi.ignite.testutil.IgniteTestUtil;
+import pl.touk.nifi.ignite.testutil.PortFinder;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Conversion of records to key and value binary objects, as done by PutIgniteRecord for every record.
+ * Every invocation converts a record with a new schema instance equal to the previous one, the same way
+ * record readers create a schema per FlowFile.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class IgniteBinaryBuilderBenchmark {
+
+    private static final int RECORD_COUNT = 1024;
+
+    @Param({ "4", "16", "64" })
+    public int fieldCount;
+
+    @Param({ "1", "3" })
+    public int keyFieldCount;
+
+    @Param({ "STRING", "LONG", "TIMESTAMP", "DECIMAL" })
+    public RecordFieldType fieldType;
+
+    private Ignite igniteServer;
+
+    private MapRecord[] records;
+
+    private String[] keyFieldNames;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        igniteServer = IgniteTestUtil.startServer(PortFinder.getAvailablePort());
+
+        List<RecordField> fields = new ArrayList<>(fieldCount);
+        for (int i = 0; i < fieldCount; i++) {
+            fields.add(new RecordField("field_" + i, fieldType.getDataType()));
+        }
+        keyFieldNames = new String[keyFieldCount];
+        for (int i = 0; i < keyFieldCount; i++) {
+            keyFieldNames[i] = "field_" + i;
+        }
+
+        records = new MapRecord[RECORD_COUNT];
+        for (int r = 0; r < RECORD_COUNT; r++) {
+            RecordSchema schema = new SimpleRecordSchema(fields);
+            Map<String, Object> values = new HashMap<>();
+            for (int i = 0; i < fieldCount; i++) {
+                values.put("field_" + i, value(r * fieldCount + i));
+            }
+            records[r] = new MapRecord(schema, values);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        igniteServer.close();
+    }
+
+    @State(Scope.Thread)
+    public static class Builder {
+
+        IgniteBinaryBuilder binaryBuilder;
+
+        int next;
+
+        @Setup(Level.Trial)
+        public void setup(IgniteBinaryBuilderBenchmark benchmark) {
+            binaryBuilder = new IgniteBinaryBuilder(benchmark.igniteServer.binary());
+        }
+
+        MapRecord nextRecord(MapRecord[] records) {
+            next = (next + 1) % records.length;
+            return records[next];
+        }
+    }
+
+    @Benchmark
+    public BinaryObject value(Builder builder) {
+        return builder.binaryBuilder.fromMapRecord(builder.nextRecord(records), "benchmark_value");
+    }
+
+    @Benchmark
+    public BinaryObject key(Builder builder) {
+        return builder.binaryBuilder.fromMapRecord(builder.nextRecord(records), "benchmark_key", keyFieldNames);
+    }
+
+    private Object value(int seed) {
+        switch (fieldType) {
+            case LONG:
+                return (long) seed;
+            case TIMESTAMP:
+                return new Timestamp(1_600_000_000_000L + seed);
+            case DECIMAL:
+                return BigDecimal.valueOf(seed, 2);
+            default:
+                return "value-" + seed;
+        }
+    }
+}
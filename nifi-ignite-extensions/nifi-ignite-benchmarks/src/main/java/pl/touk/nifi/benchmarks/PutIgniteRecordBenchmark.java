@@ -0,0 +1,132 @@
+package pl.touk.nifi.benchmarks;
+
+import org.apache.ignite.Ignite;
+import org.apache.ignite.cache.query.SqlFieldsQuery;
+import org.apache.nifi.csv.CSVReader;
+import org.apache.nifi.csv.CSVUtils;
+import org.apache.nifi.reporting.InitializationException;
+import org.apache.nifi.schema.access.SchemaAccessUtils;
+import org.apache.nifi.util.TestRunner;
+import org.apache.nifi.util.TestRunners;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import pl.touk.nifi.ignite.testutil.IgniteTestUtil;
+import pl.touk.nifi.ignite.testutil.PortFinder;
+import pl.touk.nifi.processors.PutIgniteRecord;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Whole PutIgniteRecord path, from reading a CSV FlowFile to the acknowledgement of the DataStreamer, against
+ * an embedded Ignite node. Throughput is reported in records, so results of different settings compare directly.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 10)
+@Measurement(iterations = 5, time = 10)
+@Fork(1)
+@State(Scope.Benchmark)
+public class PutIgniteRecordBenchmark {
+
+    private static final int RECORDS_PER_FLOWFILE = 10_000;
+
+    private static final String PERSON_SCHEMA =
+            "{ \"type\": \"record\", \"name\": \"person\", \"fields\": " +
+                    "[ { \"name\": \"first_name\", \"type\": \"string\" }, " +
+                    "{ \"name\": \"last_name\", \"type\": \"string\" }, " +
+                    "{ \"name\": \"birthday\", \"type\": { \"type\": \"long\", \"logicalType\": \"timestamp-millis\" } }, " +
+                    "{ \"name\": \"age\", \"type\": \"int\" } ] }";
+
+    @Param({ "250", "500" })
+    public String perNodeBufferSize;
+
+    @Param({ "1", "5", "10" })
+    public String perNodeParallelOperations;
+
+    @Param({ "10", "100" })
+    public String autoFlushFrequency;
+
+    @Param({ "100", "1000" })
+    public String recordBatchSize;
+
+    private Ignite igniteServer;
+
+    private TestRunner runner;
+
+    private byte[] flowFileContent;
+
+    private final Map<String, String> flowFileAttributes = new HashMap<>();
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException, InitializationException {
+        igniteServer = IgniteTestUtil.startServer(PortFinder.getAvailablePort(), PortFinder.getAvailablePort());
+        igniteServer.getOrCreateCache("benchmark").query(new SqlFieldsQuery(
+                "CREATE TABLE IF NOT EXISTS person (first_name VARCHAR, last_name VARCHAR, birthday TIMESTAMP, age INT, " +
+                        "PRIMARY KEY (first_name, last_name)) WITH \"CACHE_NAME=person,KEY_TYPE=person_key,VALUE_TYPE=person\"")).getAll();
+
+        StringBuilder content = new StringBuilder();
+        for (int i = 0; i < RECORDS_PER_FLOWFILE; i++) {
+            content.append("John").append(i).append(";Doe;").append(360720000L + i).append(';').append(i % 100).append('\n');
+        }
+        flowFileContent = content.toString().getBytes(StandardCharsets.UTF_8);
+        flowFileAttributes.put("csv.schema", PERSON_SCHEMA);
+
+        CSVReader csvReader = new CSVReader();
+        runner = TestRunners.newTestRunner(PutIgniteRecord.class);
+        runner.addControllerService("csv-reader", csvReader);
+        runner.setProperty(csvReader, SchemaAccessUtils.SCHEMA_ACCESS_STRATEGY.getName(), SchemaAccessUtils.SCHEMA_TEXT_PROPERTY.getValue());
+        runner.setProperty(csvReader, CSVUtils.VALUE_SEPARATOR.getName(), ";");
+        runner.setProperty(csvReader, CSVUtils.FIRST_LINE_IS_HEADER.getName(), "false");
+        runner.setProperty(csvReader, SchemaAccessUtils.SCHEMA_TEXT.getName(), "${csv.schema}");
+        runner.enableControllerService(csvReader);
+
+        runner.setProperty(PutIgniteRecord.RECORD_READER, "csv-reader");
+        runner.setProperty(PutIgniteRecord.CACHE_NAME, "person");
+        runner.setProperty(PutIgniteRecord.CACHE_KEY_TYPE, "person_key");
+        runner.setProperty(PutIgniteRecord.CACHE_VALUE_TYPE, "person");
+        runner.setProperty(PutIgniteRecord.KEY_FIELD_NAMES, "first_name,last_name");
+        runner.setProperty(PutIgniteRecord.DATA_STREAMER_PER_NODE_BUFFER_SIZE, perNodeBufferSize);
+        runner.setProperty(PutIgniteRecord.DATA_STREAMER_PER_NODE_PARALLEL_OPERATIONS, perNodeParallelOperations);
+        runner.setProperty(PutIgniteRecord.DATA_STREAMER_AUTO_FLUSH_FREQUENCY, autoFlushFrequency);
+        runner.setProperty(PutIgniteRecord.RECORD_BATCH_SIZE, recordBatchSize);
+
+        // Schedules the processor, so the DataStreamer is created outside of measurements
+        putFlowFile(true);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        runner.run(1, true, false);
+        runner.shutdown();
+        igniteServer.close();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(RECORDS_PER_FLOWFILE)
+    public void putFlowFile() {
+        putFlowFile(false);
+    }
+
+    private void putFlowFile(boolean initialize) {
+        runner.enqueue(flowFileContent, flowFileAttributes);
+        runner.run(1, false, initialize);
+        runner.assertAllFlowFilesTransferred(PutIgniteRecord.REL_SUCCESS, 1);
+        runner.clearTransferState();
+    }
+}
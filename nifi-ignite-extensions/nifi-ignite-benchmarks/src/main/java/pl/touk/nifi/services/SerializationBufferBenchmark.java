@@ -0,0 +1,70 @@
+package pl.touk.nifi.services;
+
+import org.apache.nifi.distributed.cache.client.Serializer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Serialization of cache keys and values by IgniteDistributedMapCacheClient, compared with a new stream per call.
+ * Run with {@code -prof gc} to compare allocation per operation. Placed in the services package, as the buffer
+ * is not part of the public API.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+@Threads(4)
+@State(Scope.Benchmark)
+public class SerializationBufferBenchmark {
+
+    @Param({ "32", "1024", "16384" })
+    public int valueSize;
+
+    private String value;
+
+    // Written in small chunks, as serializers usually do
+    private final Serializer<String> serializer = (value, output) -> {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        for (int offset = 0; offset < bytes.length; offset += 16) {
+            output.write(bytes, offset, Math.min(16, bytes.length - offset));
+        }
+    };
+
+    @Setup(Level.Trial)
+    public void setup() {
+        StringBuilder builder = new StringBuilder(valueSize);
+        for (int i = 0; i < valueSize; i++) {
+            builder.append((char) ('a' + i % 26));
+        }
+        value = builder.toString();
+    }
+
+    @Benchmark
+    public byte[] newStream() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        serializer.serialize(value, out);
+        return out.toByteArray();
+    }
+
+    @Benchmark
+    public byte[] threadLocalBuffer() throws IOException {
+        return SerializationBuffer.serialize(value, serializer);
+    }
+}
@@ -0,0 +1,185 @@
+package pl.touk.nifi.ignite;
+
+import org.apache.ignite.binary.BinaryObject;
+import org.apache.nifi.serialization.record.DataType;
+import org.apache.nifi.serialization.record.Record;
+import org.apache.nifi.serialization.record.RecordSchema;
+import org.apache.nifi.serialization.record.type.ArrayDataType;
+import org.apache.nifi.serialization.record.type.RecordDataType;
+import org.apache.nifi.serialization.record.util.DataTypeUtils;
+import org.apache.nifi.serialization.record.util.IllegalTypeConversionException;
+
+import java.lang.reflect.Array;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.math.RoundingMode;
+import java.sql.Time;
+import java.sql.Timestamp;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+
+/**
+ * Conversion of record field values to types Ignite stores natively in binary objects: primitives, strings,
+ * decimals, timestamps and times, typed arrays and nested binary objects for records. Values of other types,
+ * such as maps and choices, are passed as they are.
+ * <p>
+ * Dates are kept as {@link java.sql.Date}, which Ignite stores as an object, as that is what SQL {@code DATE}
+ * columns expect.
+ */
+class BinaryFieldConversion {
+
+    private static final Map<Class<?>, String> IGNITE_TYPE_NAMES = new HashMap<>();
+
+    private static final Map<Class<?>, Class<?>> PRIMITIVE_TYPES = new HashMap<>();
+
+    static {
+        registerPrimitive(Boolean.class, boolean.class, "boolean");
+        registerPrimitive(Byte.class, byte.class, "byte");
+        registerPrimitive(Short.class, short.class, "short");
+        registerPrimitive(Integer.class, int.class, "int");
+        registerPrimitive(Long.class, long.class, "long");
+        registerPrimitive(Float.class, float.class, "float");
+        registerPrimitive(Double.class, double.class, "double");
+        registerPrimitive(Character.class, char.class, "char");
+        IGNITE_TYPE_NAMES.put(BigDecimal.class, "decimal");
+        IGNITE_TYPE_NAMES.put(String.class, "String");
+        IGNITE_TYPE_NAMES.put(Timestamp.class, "Timestamp");
+        IGNITE_TYPE_NAMES.put(Time.class, "Time");
+        IGNITE_TYPE_NAMES.put(BinaryObject.class, "Object");
+    }
+
+    private static final BinaryFieldConversion UNCHANGED = new BinaryFieldConversion(null, Function.identity());
+
+    private final Class<?> binaryClass;
+
+    private final Function<Object, Object> converter;
+
+    private BinaryFieldConversion(Class<?> binaryClass, Function<Object, Object> converter) {
+        this.binaryClass = binaryClass;
+        this.converter = converter;
+    }
+
+    /**
+     * @param nestedTypeName  binary type name used for values of record fields
+     * @param decimalScale    scale decimals are rounded to, or null to keep their scale
+     * @param nestedMappings  creates mappings of nested records for a schema and a binary type name
+     */
+    static BinaryFieldConversion forDataType(DataType dataType, String fieldName, String nestedTypeName, Integer decimalScale,
+                                             BiFunction<RecordSchema, String, RecordBinaryMapping> nestedMappings) {
+        switch (dataType.getFieldType()) {
+            case BOOLEAN:
+                return coerced(Boolean.class, dataType, fieldName);
+            case BYTE:
+                return coerced(Byte.class, dataType, fieldName);
+            case SHORT:
+                return coerced(Short.class, dataType, fieldName);
+            case INT:
+                return coerced(Integer.class, dataType, fieldName);
+            case LONG:
+                return coerced(Long.class, dataType, fieldName);
+            case FLOAT:
+                return coerced(Float.class, dataType, fieldName);
+            case DOUBLE:
+                return coerced(Double.class, dataType, fieldName);
+            case CHAR:
+                return coerced(Character.class, dataType, fieldName);
+            case STRING:
+                return coerced(String.class, dataType, fieldName);
+            case TIMESTAMP:
+                return coerced(Timestamp.class, dataType, fieldName);
+            case TIME:
+                return coerced(Time.class, dataType, fieldName);
+            case DATE:
+                return new BinaryFieldConversion(null, value -> value instanceof java.sql.Date
+                        ? value : DataTypeUtils.convertType(value, dataType, fieldName));
+            case DECIMAL:
+                return new BinaryFieldConversion(BigDecimal.class, value -> {
+                    BigDecimal decimal = DataTypeUtils.toBigDecimal(value, fieldName);
+                    return decimalScale == null ? decimal : decimal.setScale(decimalScale, RoundingMode.HALF_UP);
+                });
+            case BIGINT:
+                // Ignite has no native big integer type, decimals of scale 0 keep the value and can be indexed
+                return new BinaryFieldConversion(BigDecimal.class, value -> new BigDecimal(value instanceof BigInteger
+                        ? (BigInteger) value : DataTypeUtils.toBigInt(value, fieldName)));
+            case RECORD:
+                RecordSchema childSchema = ((RecordDataType) dataType).getChildSchema();
+                if (childSchema == null) {
+                    return UNCHANGED;
+                }
+                // Compiled on first value, so recursive schemas are mapped only as deep as the data goes
+                RecordBinaryMapping[] nestedMapping = new RecordBinaryMapping[1];
+                return new BinaryFieldConversion(BinaryObject.class, value -> {
+                    if (nestedMapping[0] == null) {
+                        nestedMapping[0] = nestedMappings.apply(childSchema, nestedTypeName);
+                    }
+                    return nestedMapping[0].build(value instanceof Record
+                            ? (Record) value : (Record) DataTypeUtils.convertType(value, dataType, fieldName));
+                });
+            case ARRAY:
+                BinaryFieldConversion elementConversion = forDataType(((ArrayDataType) dataType).getElementType(), fieldName,
+                        nestedTypeName, decimalScale, nestedMappings);
+                return elementConversion.binaryClass == null
+                        ? UNCHANGED : array(elementConversion, ((ArrayDataType) dataType).getElementType(), fieldName);
+            default:
+                return UNCHANGED;
+        }
+    }
+
+    /**
+     * Class of converted values registered in binary metadata, or null if it is known only from the value.
+     */
+    Class<?> getBinaryClass() {
+        return binaryClass;
+    }
+
+    /**
+     * Name of the field type registered in binary metadata, or null if it is known only from the value.
+     */
+    String getIgniteTypeName() {
+        if (binaryClass == null) {
+            return null;
+        }
+        return binaryClass.isArray() ? IGNITE_TYPE_NAMES.get(binaryClass.getComponentType()) + "[]" : IGNITE_TYPE_NAMES.get(binaryClass);
+    }
+
+    Object convert(Object value) {
+        return value == null ? null : converter.apply(value);
+    }
+
+    private static BinaryFieldConversion coerced(Class<?> binaryClass, DataType dataType, String fieldName) {
+        return new BinaryFieldConversion(binaryClass, value -> binaryClass.isInstance(value)
+                ? value : DataTypeUtils.convertType(value, dataType, fieldName));
+    }
+
+    /**
+     * Arrays of primitives are converted to primitive arrays, so they are stored without per element headers.
+     */
+    private static BinaryFieldConversion array(BinaryFieldConversion elementConversion, DataType elementType, String fieldName) {
+        Class<?> elementClass = PRIMITIVE_TYPES.getOrDefault(elementConversion.binaryClass, elementConversion.binaryClass);
+        Class<?> arrayClass = Array.newInstance(elementClass, 0).getClass();
+        boolean primitive = elementClass.isPrimitive();
+        return new BinaryFieldConversion(arrayClass, value -> {
+            if (arrayClass.isInstance(value)) {
+                return value;
+            }
+            Object[] elements = value instanceof Object[] ? (Object[]) value : DataTypeUtils.toArray(value, fieldName, elementType);
+            Object array = Array.newInstance(elementClass, elements.length);
+            for (int i = 0; i < elements.length; i++) {
+                Object element = elementConversion.convert(elements[i]);
+                if (element == null && primitive) {
+                    throw new IllegalTypeConversionException("Array field " + fieldName + " of primitive values contains null");
+                }
+                Array.set(array, i, element);
+            }
+            return array;
+        });
+    }
+
+    private static void registerPrimitive(Class<?> boxedType, Class<?> primitiveType, String igniteTypeName) {
+        PRIMITIVE_TYPES.put(boxedType, primitiveType);
+        IGNITE_TYPE_NAMES.put(boxedType, igniteTypeName);
+        IGNITE_TYPE_NAMES.put(primitiveType, igniteTypeName);
+    }
+}
@@ -2,19 +2,54 @@ package pl.touk.nifi.ignite;
 
 import org.apache.ignite.IgniteBinary;
 import org.apache.ignite.binary.BinaryObject;
-import org.apache.ignite.binary.BinaryObjectBuilder;
 import org.apache.nifi.serialization.record.MapRecord;
+import org.apache.nifi.serialization.record.RecordSchema;
 
-import java.util.Arrays;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.stream.Collectors;
 
+/**
+ * Builds Ignite binary objects from records. Mappings are compiled once per record schema and cached,
+ * first by schema instance and then by schema equality, as readers usually create a new schema instance
+ * for every FlowFile. Binary types are checked and registered when a mapping is compiled, see
+ * {@link RecordBinaryMapping}. Instances are not thread-safe.
+ */
 public class IgniteBinaryBuilder {
 
+    private static final int MAX_CACHED_SCHEMAS = 64;
+
     private IgniteBinary igniteBinary;
 
+    private final boolean rejectSchemaDrift;
+
+    private final Integer decimalScale;
+
+    private final Map<RecordSchema, List<RecordBinaryMapping>> mappingsBySchemaInstance = new IdentityHashMap<>();
+
+    private final Map<RecordSchema, List<RecordBinaryMapping>> mappingsBySchema = new HashMap<>();
+
     public IgniteBinaryBuilder(IgniteBinary igniteBinary) {
+        this(igniteBinary, false);
+    }
+
+    /**
+     * @param rejectSchemaDrift whether records whose schema would add fields to an already registered binary type
+     *                          are rejected with {@link org.apache.ignite.binary.BinaryObjectException}
+     */
+    public IgniteBinaryBuilder(IgniteBinary igniteBinary, boolean rejectSchemaDrift) {
+        this(igniteBinary, rejectSchemaDrift, null);
+    }
+
+    /**
+     * @param decimalScale scale decimal values are rounded to, or null to keep the scale of each value
+     */
+    public IgniteBinaryBuilder(IgniteBinary igniteBinary, boolean rejectSchemaDrift, Integer decimalScale) {
         this.igniteBinary = igniteBinary;
+        this.rejectSchemaDrift = rejectSchemaDrift;
+        this.decimalScale = decimalScale;
     }
 
     public BinaryObject fromMapRecord(MapRecord record, String igniteTypeName) {
@@ -22,19 +57,28 @@ public class IgniteBinaryBuilder {
     }
 
     public BinaryObject fromMapRecord(MapRecord record, String igniteTypeName, String[] fieldNamesIncluded) {
-        BinaryObjectBuilder builder = igniteBinary.builder(igniteTypeName);
-        getRecordFields(record, fieldNamesIncluded).forEach(builder::setField);
-        return builder.build();
+        return getMapping(record.getSchema(), igniteTypeName, fieldNamesIncluded).build(record);
     }
 
-    private Map<String, Object> getRecordFields(MapRecord record, String[] fieldNamesIncluded) {
-        if (fieldNamesIncluded == null)
-            return record.toMap();
-        else {
-            return record.toMap().entrySet().stream().filter(recordEntry ->
-                    Arrays.stream(fieldNamesIncluded).anyMatch(fieldName ->
-                            recordEntry.getKey().equals(fieldName))
-            ).collect(Collectors.toMap(Map.Entry::getKey, Map.Entry::getValue));
+    private RecordBinaryMapping getMapping(RecordSchema schema, String igniteTypeName, String[] fieldNamesIncluded) {
+        List<RecordBinaryMapping> mappings = mappingsBySchemaInstance.get(schema);
+        if (mappings == null) {
+            if (mappingsBySchemaInstance.size() >= MAX_CACHED_SCHEMAS) {
+                mappingsBySchemaInstance.clear();
+            }
+            if (mappingsBySchema.size() >= MAX_CACHED_SCHEMAS) {
+                mappingsBySchema.clear();
+            }
+            mappings = mappingsBySchema.computeIfAbsent(schema, s -> new ArrayList<>(2));
+            mappingsBySchemaInstance.put(schema, mappings);
+        }
+        for (RecordBinaryMapping mapping : mappings) {
+            if (mapping.matches(igniteTypeName, fieldNamesIncluded)) {
+                return mapping;
+            }
         }
+        RecordBinaryMapping mapping = RecordBinaryMapping.compile(igniteBinary, schema, igniteTypeName, fieldNamesIncluded, rejectSchemaDrift, decimalScale);
+        mappings.add(mapping);
+        return mapping;
     }
 }
@@ -0,0 +1,132 @@
+package pl.touk.nifi.ignite;
+
+import org.apache.ignite.IgniteBinary;
+import org.apache.ignite.binary.BinaryObject;
+import org.apache.ignite.binary.BinaryObjectBuilder;
+import org.apache.ignite.binary.BinaryObjectException;
+import org.apache.ignite.binary.BinaryType;
+import org.apache.nifi.serialization.record.Record;
+import org.apache.nifi.serialization.record.RecordField;
+import org.apache.nifi.serialization.record.RecordSchema;
+import org.apache.nifi.serialization.record.util.IllegalTypeConversionException;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.function.BiFunction;
+
+/**
+ * Mapping of records with a given schema to Ignite binary objects of a given type.
+ * Field names are resolved once, when the mapping is created, and the underlying
+ * {@link BinaryObjectBuilder} is reused for every record, so instances are not thread-safe. Field values are
+ * converted to Ignite native types, see {@link BinaryFieldConversion}.
+ * <p>
+ * When the mapping is created, field types derived from the record schema are checked against the
+ * registered {@link BinaryType}, and missing fields are registered up front, so building objects never
+ * changes binary metadata.
+ */
+class RecordBinaryMapping {
+
+    private final String igniteTypeName;
+
+    private final String[] fieldNamesIncluded;
+
+    private final String[] fieldNames;
+
+    private final BinaryFieldConversion[] conversions;
+
+    private final BinaryObjectBuilder builder;
+
+    private RecordBinaryMapping(String igniteTypeName, String[] fieldNamesIncluded, String[] fieldNames, BinaryFieldConversion[] conversions,
+                                BinaryObjectBuilder builder) {
+        this.igniteTypeName = igniteTypeName;
+        this.fieldNamesIncluded = fieldNamesIncluded;
+        this.fieldNames = fieldNames;
+        this.conversions = conversions;
+        this.builder = builder;
+    }
+
+    /**
+     * Creates the mapping and registers fields missing from the binary type. Throws {@link BinaryObjectException}
+     * if a field type conflicts with the registered one, or if fields would be added to an already registered
+     * type while schema drift is rejected. Nested records are mapped to binary types named after the parent
+     * type and the field, for example {@code person_address}.
+     */
+    static RecordBinaryMapping compile(IgniteBinary igniteBinary, RecordSchema schema, String igniteTypeName, String[] fieldNamesIncluded,
+                                       boolean rejectSchemaDrift, Integer decimalScale) {
+        BiFunction<RecordSchema, String, RecordBinaryMapping> nestedMappings = (nestedSchema, nestedTypeName) ->
+                compile(igniteBinary, nestedSchema, nestedTypeName, null, rejectSchemaDrift, decimalScale);
+        Set<String> included = fieldNamesIncluded == null ? null : new HashSet<>(Arrays.asList(fieldNamesIncluded));
+        List<String> fieldNames = new ArrayList<>(schema.getFieldCount());
+        List<BinaryFieldConversion> conversions = new ArrayList<>(schema.getFieldCount());
+        for (RecordField field : schema.getFields()) {
+            if (included == null || included.contains(field.getFieldName())) {
+                fieldNames.add(field.getFieldName());
+                conversions.add(BinaryFieldConversion.forDataType(field.getDataType(), field.getFieldName(),
+                        igniteTypeName + "_" + field.getFieldName(), decimalScale, nestedMappings));
+            }
+        }
+
+        BinaryType binaryType = igniteBinary.type(igniteTypeName);
+        List<String> missingFieldNames = new ArrayList<>();
+        for (int i = 0; i < fieldNames.size(); i++) {
+            String registeredTypeName = binaryType == null ? null : binaryType.fieldTypeName(fieldNames.get(i));
+            String expectedTypeName = conversions.get(i).getIgniteTypeName();
+            if (registeredTypeName == null) {
+                missingFieldNames.add(fieldNames.get(i));
+            } else if (expectedTypeName != null && !expectedTypeName.equals(registeredTypeName)) {
+                throw new BinaryObjectException("Field " + fieldNames.get(i) + " of binary type " + igniteTypeName + " is registered as "
+                        + registeredTypeName + ", but record schema has " + expectedTypeName);
+            }
+        }
+
+        BinaryObjectBuilder builder = igniteBinary.builder(igniteTypeName);
+        if (!missingFieldNames.isEmpty()) {
+            if (binaryType != null && rejectSchemaDrift) {
+                throw new BinaryObjectException("Record schema would add fields " + missingFieldNames + " to binary type " + igniteTypeName);
+            }
+            // Building an object with typed null fields registers them with types derived from the schema
+            for (int i = 0; i < fieldNames.size(); i++) {
+                if (conversions.get(i).getBinaryClass() != null) {
+                    setNull(builder, fieldNames.get(i), conversions.get(i).getBinaryClass());
+                }
+            }
+            builder.build();
+        }
+        return new RecordBinaryMapping(igniteTypeName, fieldNamesIncluded, fieldNames.toArray(new String[0]),
+                conversions.toArray(new BinaryFieldConversion[0]), builder);
+    }
+
+    boolean matches(String igniteTypeName, String[] fieldNamesIncluded) {
+        return this.igniteTypeName.equals(igniteTypeName) &&
+               (this.fieldNamesIncluded == fieldNamesIncluded || Arrays.equals(this.fieldNamesIncluded, fieldNamesIncluded));
+    }
+
+    /**
+     * Throws {@link IllegalTypeConversionException} if a field value cannot be converted to the type of its field.
+     */
+    BinaryObject build(Record record) {
+        for (int i = 0; i < fieldNames.length; i++) {
+            Object value;
+            try {
+                value = conversions[i].convert(record.getValue(fieldNames[i]));
+            } catch (IllegalTypeConversionException | NumberFormatException | ClassCastException e) {
+                throw new IllegalTypeConversionException("Cannot convert field " + fieldNames[i] + " of binary type " + igniteTypeName
+                        + ": " + e.getMessage(), e);
+            }
+            if (value == null && conversions[i].getBinaryClass() != null) {
+                setNull(builder, fieldNames[i], conversions[i].getBinaryClass());
+            } else {
+                builder.setField(fieldNames[i], value);
+            }
+        }
+        return builder.build();
+    }
+
+    @SuppressWarnings("unchecked")
+    private static void setNull(BinaryObjectBuilder builder, String fieldName, Class<?> fieldClass) {
+        builder.setField(fieldName, null, (Class<Object>) fieldClass);
+    }
+}
@@ -15,7 +15,7 @@ import java.util.Set;
 
 public abstract class AbstractGenericIgniteCacheProcessor<K, V> extends AbstractIgniteProcessor {
 
-    protected static final PropertyDescriptor CACHE_NAME = new PropertyDescriptor.Builder()
+    public static final PropertyDescriptor CACHE_NAME = new PropertyDescriptor.Builder()
             .displayName("Ignite Cache Name")
             .name("ignite-cache-name")
             .description("The name of the ignite cache")
@@ -23,7 +23,7 @@ public abstract class AbstractGenericIgniteCacheProcessor<K, V> extends Abstract
             .addValidator(StandardValidators.NON_EMPTY_VALIDATOR)
             .build();
 
-    protected static final PropertyDescriptor CACHE_KEY_TYPE = new PropertyDescriptor.Builder()
+    public static final PropertyDescriptor CACHE_KEY_TYPE = new PropertyDescriptor.Builder()
             .displayName("Ignite Cache Key Type")
             .name("ignite-cache-key-type")
             .description("The name of the ignite cache key type")
@@ -31,7 +31,7 @@ public abstract class AbstractGenericIgniteCacheProcessor<K, V> extends Abstract
             .addValidator(StandardValidators.NON_EMPTY_VALIDATOR)
             .build();
 
-    protected static final PropertyDescriptor CACHE_VALUE_TYPE = new PropertyDescriptor.Builder()
+    public static final PropertyDescriptor CACHE_VALUE_TYPE = new PropertyDescriptor.Builder()
             .displayName("Ignite Cache Value Type")
             .name("ignite-cache-value-type")
             .description("The name of the ignite cache value type")
@@ -0,0 +1,45 @@
+package pl.touk.nifi.processors;
+
+import org.apache.nifi.processor.exception.ProcessException;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Limits the number of bytes held by all concurrent tasks of a processor. Amounts larger than the budget
+ * take the whole budget, so they wait for everything else to be released but never block forever.
+ */
+class ByteBudget {
+
+    private static final long WAIT_INTERVAL_MILLIS = 100;
+
+    private final int maxBytes;
+
+    private final Semaphore available;
+
+    ByteBudget(long maxBytes) {
+        this.maxBytes = (int) Math.min(Math.max(maxBytes, 1), Integer.MAX_VALUE);
+        this.available = new Semaphore(this.maxBytes);
+    }
+
+    /**
+     * Waits until the bytes are available, running the given action every time the wait times out,
+     * and returns the amount that has to be released.
+     */
+    int acquire(long bytes, Runnable whileWaiting) {
+        int permits = (int) Math.min(bytes, maxBytes);
+        try {
+            while (!available.tryAcquire(permits, WAIT_INTERVAL_MILLIS, TimeUnit.MILLISECONDS)) {
+                whileWaiting.run();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ProcessException("Interrupted while waiting for pending writes to be acknowledged", e);
+        }
+        return permits;
+    }
+
+    void release(int permits) {
+        available.release(permits);
+    }
+}
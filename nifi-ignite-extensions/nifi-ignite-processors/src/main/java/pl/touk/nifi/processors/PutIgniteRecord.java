@@ -1,11 +1,9 @@
 package pl.touk.nifi.processors;
 
-import org.apache.ignite.IgniteClientDisconnectedException;
+import org.apache.ignite.IgniteCache;
 import org.apache.ignite.IgniteDataStreamer;
-import org.apache.ignite.IgniteDataStreamerTimeoutException;
-import org.apache.ignite.IgniteInterruptedException;
+import org.apache.ignite.IgniteException;
 import org.apache.ignite.binary.BinaryObject;
-import org.apache.ignite.lang.IgniteFuture;
 import org.apache.nifi.annotation.behavior.*;
 import org.apache.nifi.annotation.documentation.CapabilityDescription;
 import org.apache.nifi.annotation.documentation.Tags;
@@ -15,30 +13,47 @@ import org.apache.nifi.annotation.lifecycle.OnStopped;
 import org.apache.nifi.components.AllowableValue;
 import org.apache.nifi.components.PropertyDescriptor;
 import org.apache.nifi.flowfile.FlowFile;
+import org.apache.nifi.flowfile.attributes.CoreAttributes;
+import org.apache.nifi.processor.DataUnit;
 import org.apache.nifi.processor.ProcessContext;
 import org.apache.nifi.processor.ProcessSession;
 import org.apache.nifi.processor.exception.ProcessException;
+import org.apache.nifi.processor.util.FlowFileFilters;
 import org.apache.nifi.processor.util.StandardValidators;
 import org.apache.nifi.schema.access.SchemaNotFoundException;
 import org.apache.nifi.serialization.MalformedRecordException;
 import org.apache.nifi.serialization.RecordReader;
 import org.apache.nifi.serialization.RecordReaderFactory;
-import org.apache.nifi.serialization.record.MapRecord;
+import org.apache.nifi.serialization.RecordSetWriter;
+import org.apache.nifi.serialization.RecordSetWriterFactory;
+import org.apache.nifi.serialization.WriteResult;
 import org.apache.nifi.serialization.record.Record;
+import org.apache.nifi.serialization.record.RecordSchema;
+import org.apache.nifi.serialization.record.util.IllegalTypeConversionException;
+import org.apache.nifi.stream.io.ByteCountingInputStream;
 import pl.touk.nifi.ignite.IgniteBinaryBuilder;
 
 import javax.cache.CacheException;
 import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 @EventDriven
 @SupportsBatching
 @Tags({ "Ignite", "insert", "update", "stream", "write", "put", "cache", "key", "record" })
 @InputRequirement(InputRequirement.Requirement.INPUT_REQUIRED)
 @CapabilityDescription("Puts records from FlowFile into Ignite Cache using DataStreamer.")
-@SystemResourceConsideration(resource = SystemResource.MEMORY)
+@WritesAttributes({
+        @WritesAttribute(attribute = "record.count", description = "Number of records in a FlowFile created from records that could not be written"),
+        @WritesAttribute(attribute = "ignite.failed.record.count", description = "Number of records of the original FlowFile that could not be written")
+})
+@SystemResourceConsideration(resource = SystemResource.MEMORY, description = "Records passed to the Data Streamer are held in memory "
+        + "until acknowledged, up to Max Pending Bytes of FlowFile content.")
 public class PutIgniteRecord extends AbstractGenericIgniteCacheProcessor<BinaryObject, BinaryObject> {
 
-    static final PropertyDescriptor RECORD_READER = new PropertyDescriptor.Builder()
+    public static final PropertyDescriptor RECORD_READER = new PropertyDescriptor.Builder()
             .displayName("Record Reader")
             .name("record-reader")
             .description("Specifies the Controller Service to use for reading incoming data")
@@ -46,6 +61,45 @@ public class PutIgniteRecord extends AbstractGenericIgniteCacheProcessor<BinaryO
             .required(true)
             .build();
 
+    public static final PropertyDescriptor RECORD_WRITER = new PropertyDescriptor.Builder()
+            .displayName("Record Writer")
+            .name("record-writer")
+            .description("Specifies the Controller Service to use for writing records that could not be written to the cache. "
+                    + "If set, entries of a failed batch are put into the cache one by one, only the records that still fail are routed "
+                    + "to failure in a new FlowFile and the original FlowFile is routed to success. If not set, the whole "
+                    + "FlowFile is routed to failure when any of its records fails.")
+            .identifiesControllerService(RecordSetWriterFactory.class)
+            .required(false)
+            .build();
+
+    static final AllowableValue SCHEMA_DRIFT_ALLOW = new AllowableValue("allow", "Allow",
+            "Fields missing from a registered binary type are added to it.");
+
+    static final AllowableValue SCHEMA_DRIFT_REJECT = new AllowableValue("reject", "Reject",
+            "FlowFiles whose record schema would add fields to a registered binary type are routed to failure.");
+
+    public static final PropertyDescriptor SCHEMA_DRIFT = new PropertyDescriptor.Builder()
+            .displayName("Schema Drift")
+            .name("schema-drift")
+            .description("How to handle record schemas that do not match the binary types registered in the cluster. Binary types "
+                    + "are registered from the first record schema seen, before any record is written. Records with field types "
+                    + "conflicting with a registered binary type are always routed to failure.")
+            .allowableValues(SCHEMA_DRIFT_ALLOW, SCHEMA_DRIFT_REJECT)
+            .defaultValue(SCHEMA_DRIFT_ALLOW.getValue())
+            .required(true)
+            .sensitive(false)
+            .build();
+
+    public static final PropertyDescriptor DECIMAL_SCALE = new PropertyDescriptor.Builder()
+            .displayName("Decimal Scale")
+            .name("decimal-scale")
+            .description("Scale decimal values are rounded to before they are written, so they match the scale of DECIMAL "
+                    + "columns. If not set, each value keeps its own scale.")
+            .required(false)
+            .addValidator(StandardValidators.NON_NEGATIVE_INTEGER_VALIDATOR)
+            .sensitive(false)
+            .build();
+
     public static final PropertyDescriptor DATA_STREAMER_PER_NODE_PARALLEL_OPERATIONS = new PropertyDescriptor.Builder()
             .displayName("Data Streamer Per Node Parallel Operations")
             .name("data-streamer-per-node-parallel-operations")
@@ -96,19 +150,126 @@ public class PutIgniteRecord extends AbstractGenericIgniteCacheProcessor<BinaryO
             .sensitive(false)
             .build();
 
+    public static final PropertyDescriptor RETRY_BACKOFF = new PropertyDescriptor.Builder()
+            .displayName("Retry Backoff")
+            .name("retry-backoff")
+            .description("Time to wait before writing FlowFiles again after a client disconnect. The wait is doubled "
+                    + "with every retry of the same FlowFiles, up to Max Retry Backoff.")
+            .defaultValue("100 millis")
+            .required(true)
+            .addValidator(StandardValidators.TIME_PERIOD_VALIDATOR)
+            .sensitive(false)
+            .build();
+
+    public static final PropertyDescriptor MAX_RETRY_BACKOFF = new PropertyDescriptor.Builder()
+            .displayName("Max Retry Backoff")
+            .name("max-retry-backoff")
+            .description("Maximum time to wait before writing FlowFiles again after a client disconnect.")
+            .defaultValue("10 sec")
+            .required(true)
+            .addValidator(StandardValidators.TIME_PERIOD_VALIDATOR)
+            .sensitive(false)
+            .build();
+
+    public static final PropertyDescriptor RECORD_BATCH_SIZE = new PropertyDescriptor.Builder()
+            .displayName("Record Batch Size")
+            .name("record-batch-size")
+            .description("Maximum number of records passed to the Data Streamer in a single call. Records are streamed in batches "
+                    + "while the FlowFile is being read, so memory usage does not depend on the FlowFile size.")
+            .defaultValue("1000")
+            .required(true)
+            .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+            .sensitive(false)
+            .build();
+
+    public static final PropertyDescriptor RECORD_BATCH_MAX_BYTES = new PropertyDescriptor.Builder()
+            .displayName("Record Batch Max Bytes")
+            .name("record-batch-max-bytes")
+            .description("Approximate amount of FlowFile content read for a single batch. The batch is passed to the Data Streamer "
+                    + "as soon as either this size or Record Batch Size is reached.")
+            .defaultValue("1 MB")
+            .required(true)
+            .addValidator(StandardValidators.DATA_SIZE_VALIDATOR)
+            .sensitive(false)
+            .build();
+
+    public static final PropertyDescriptor MAX_PENDING_BYTES = new PropertyDescriptor.Builder()
+            .displayName("Max Pending Bytes")
+            .name("max-pending-bytes")
+            .description("Maximum amount of FlowFile content whose records were passed to the Data Streamer but not yet acknowledged, "
+                    + "shared by all concurrent tasks. Reading FlowFiles pauses while the limit is reached, so the heap used by "
+                    + "records waiting for the cluster stays bounded when the cluster slows down.")
+            .defaultValue("64 MB")
+            .required(true)
+            .addValidator(StandardValidators.DATA_SIZE_VALIDATOR)
+            .sensitive(false)
+            .build();
+
+    public static final PropertyDescriptor RECORD_CONVERSION_THREADS = new PropertyDescriptor.Builder()
+            .displayName("Record Conversion Threads")
+            .name("record-conversion-threads")
+            .description("Number of threads converting records to Ignite binary objects and passing them to the Data Streamer. "
+                    + "With 1 records are converted by the thread reading the FlowFile. Records with the same key are always "
+                    + "converted by the same thread, so their order within the FlowFile is kept.")
+            .defaultValue("1")
+            .required(true)
+            .addValidator(StandardValidators.createLongValidator(1, 64, true))
+            .sensitive(false)
+            .build();
+
+    public static final PropertyDescriptor FLOWFILE_BATCH_SIZE = new PropertyDescriptor.Builder()
+            .displayName("FlowFile Batch Size")
+            .name("flowfile-batch-size")
+            .description("Maximum number of FlowFiles written in a single execution. Records of all FlowFiles are passed to the "
+                    + "Data Streamer before waiting for acknowledgements, and each FlowFile is routed to success or failure "
+                    + "on its own.")
+            .defaultValue("1")
+            .required(true)
+            .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+            .sensitive(false)
+            .build();
+
+    public static final PropertyDescriptor FLOWFILE_BATCH_MAX_BYTES = new PropertyDescriptor.Builder()
+            .displayName("FlowFile Batch Max Bytes")
+            .name("flowfile-batch-max-bytes")
+            .description("Maximum total size of FlowFiles written in a single execution. At least one FlowFile is always written.")
+            .defaultValue("10 MB")
+            .required(true)
+            .addValidator(StandardValidators.DATA_SIZE_VALIDATOR)
+            .sensitive(false)
+            .build();
+
     protected static final List<PropertyDescriptor> descriptors =
             Arrays.asList(IGNITE_CONFIGURATION_FILE,CACHE_NAME, CACHE_KEY_TYPE, CACHE_VALUE_TYPE,
-                    RECORD_READER, KEY_FIELD_NAMES,
+                    RECORD_READER, RECORD_WRITER, KEY_FIELD_NAMES,
+                    SCHEMA_DRIFT,
+                    DECIMAL_SCALE,
+                    FLOWFILE_BATCH_SIZE,
+                    FLOWFILE_BATCH_MAX_BYTES,
+                    RECORD_BATCH_SIZE,
+                    RECORD_BATCH_MAX_BYTES,
+                    MAX_PENDING_BYTES,
+                    RECORD_CONVERSION_THREADS,
                     DATA_STREAMER_PER_NODE_PARALLEL_OPERATIONS,
                     DATA_STREAMER_PER_NODE_BUFFER_SIZE,
                     DATA_STREAMER_AUTO_FLUSH_FREQUENCY,
                     DATA_STREAMER_ALLOW_OVERRIDE,
-                    DATA_STREAMER_MAX_RETRIES_ON_FAILURE);
+                    DATA_STREAMER_MAX_RETRIES_ON_FAILURE,
+                    RETRY_BACKOFF,
+                    MAX_RETRY_BACKOFF);
 
-    private transient IgniteDataStreamer<BinaryObject, BinaryObject> igniteDataStreamer;
+    private transient volatile IgniteDataStreamer<BinaryObject, BinaryObject> igniteDataStreamer;
+
+    private final Object dataStreamerLock = new Object();
 
     private Integer maxRetries;
 
+    private volatile ThreadLocal<IgniteBinaryBuilder> binaryBuilders;
+
+    private volatile ExecutorService[] conversionWorkers = new ExecutorService[0];
+
+    private volatile ByteBudget pendingBytes;
+
     @Override
     public List<PropertyDescriptor> getSupportedPropertyDescriptors() {
         return descriptors;
@@ -116,16 +277,27 @@ public class PutIgniteRecord extends AbstractGenericIgniteCacheProcessor<BinaryO
 
     @OnStopped
     public final void closeIgniteDataStreamer() {
-        if (igniteDataStreamer != null) {
-            getLogger().info("Closing ignite data streamer");
-            try {
-                igniteDataStreamer.flush();
-            } catch (CacheException ex) {
-                getLogger().info("Exception while closing Ignite DataStreamer", ex);
-            } finally {
-                igniteDataStreamer = null;
+        synchronized (dataStreamerLock) {
+            if (igniteDataStreamer != null) {
+                getLogger().info("Closing ignite data streamer");
+                try {
+                    igniteDataStreamer.flush();
+                } catch (CacheException ex) {
+                    getLogger().info("Exception while closing Ignite DataStreamer", ex);
+                } finally {
+                    igniteDataStreamer = null;
+                }
             }
         }
+        shutdownConversionWorkers();
+        pendingBytes = null;
+    }
+
+    private void shutdownConversionWorkers() {
+        for (ExecutorService worker : conversionWorkers) {
+            worker.shutdownNow();
+        }
+        conversionWorkers = new ExecutorService[0];
     }
 
     @OnShutdown
@@ -144,24 +316,51 @@ public class PutIgniteRecord extends AbstractGenericIgniteCacheProcessor<BinaryO
 
         super.initializeIgniteCache(context);
 
-        if ( getIgniteDataStreamer() != null ) {
-            return;
+        final boolean rejectSchemaDrift = SCHEMA_DRIFT_REJECT.getValue().equals(context.getProperty(SCHEMA_DRIFT).getValue());
+        final Integer decimalScale = context.getProperty(DECIMAL_SCALE).asInteger();
+        if (pendingBytes == null) {
+            pendingBytes = new ByteBudget(context.getProperty(MAX_PENDING_BYTES).asDataSize(DataUnit.B).longValue());
+        }
+        binaryBuilders = ThreadLocal.withInitial(() -> new IgniteBinaryBuilder(getIgnite().binary(), rejectSchemaDrift, decimalScale));
+
+        int conversionThreads = context.getProperty(RECORD_CONVERSION_THREADS).asInteger();
+        if (conversionThreads > 1 && conversionWorkers.length != conversionThreads) {
+            shutdownConversionWorkers();
+            ExecutorService[] workers = new ExecutorService[conversionThreads];
+            for (int i = 0; i < conversionThreads; i++) {
+                String threadName = "PutIgniteRecord-" + getIdentifier() + "-conversion-" + i;
+                workers[i] = Executors.newSingleThreadExecutor(runnable -> {
+                    Thread thread = new Thread(runnable, threadName);
+                    thread.setDaemon(true);
+                    return thread;
+                });
+            }
+            conversionWorkers = workers;
+        }
+
+        synchronized (dataStreamerLock) {
+            if ( getIgniteDataStreamer() != null ) {
+                return;
+            }
+            maxRetries = context.getProperty(DATA_STREAMER_MAX_RETRIES_ON_FAILURE).asInteger();
+            igniteDataStreamer = createIgniteDataStreamer(context);
         }
+    }
 
+    private IgniteDataStreamer<BinaryObject, BinaryObject> createIgniteDataStreamer(ProcessContext context) throws ProcessException {
         getLogger().info("Creating Ignite DataStreamer");
         try {
             int perNodeParallelOperations = context.getProperty(DATA_STREAMER_PER_NODE_PARALLEL_OPERATIONS).asInteger();
             int perNodeBufferSize = context.getProperty(DATA_STREAMER_PER_NODE_BUFFER_SIZE).asInteger();
             int autoFlushFrequency = context.getProperty(DATA_STREAMER_AUTO_FLUSH_FREQUENCY).asInteger();
             boolean allowOverride = context.getProperty(DATA_STREAMER_ALLOW_OVERRIDE).asBoolean();
-            maxRetries = context.getProperty(DATA_STREAMER_MAX_RETRIES_ON_FAILURE).asInteger();
-
-            igniteDataStreamer = getIgnite().dataStreamer(getIgniteCache().getName());
-            igniteDataStreamer.perNodeBufferSize(perNodeBufferSize);
-            igniteDataStreamer.perNodeParallelOperations(perNodeParallelOperations);
-            igniteDataStreamer.autoFlushFrequency(autoFlushFrequency);
-            igniteDataStreamer.allowOverwrite(allowOverride);
 
+            IgniteDataStreamer<BinaryObject, BinaryObject> dataStreamer = getIgnite().dataStreamer(getIgniteCache().getName());
+            dataStreamer.perNodeBufferSize(perNodeBufferSize);
+            dataStreamer.perNodeParallelOperations(perNodeParallelOperations);
+            dataStreamer.autoFlushFrequency(autoFlushFrequency);
+            dataStreamer.allowOverwrite(allowOverride);
+            return dataStreamer;
         } catch (Exception e) {
             getLogger().error("Failed to schedule PutIgniteRecord due to {}", new Object[] { e }, e);
             throw new ProcessException(e);
@@ -170,56 +369,212 @@ public class PutIgniteRecord extends AbstractGenericIgniteCacheProcessor<BinaryO
 
     @Override
     public void onTrigger(final ProcessContext context, final ProcessSession session) throws ProcessException {
-        FlowFile flowFile = session.get();
-        if (flowFile == null) {
+        final int flowFileBatchSize = context.getProperty(FLOWFILE_BATCH_SIZE).asInteger();
+        final double flowFileBatchMaxBytes = context.getProperty(FLOWFILE_BATCH_MAX_BYTES).asDataSize(DataUnit.B);
+        List<FlowFile> flowFiles = session.get(FlowFileFilters.newSizeBasedFilter(flowFileBatchMaxBytes, DataUnit.B, flowFileBatchSize));
+        if (flowFiles.isEmpty()) {
             return;
         }
+        final boolean failed = writeWithRetries(context, session, flowFiles, 0);
 
-        final RecordReaderFactory readerFactory = context.getProperty(RECORD_READER).asControllerService(RecordReaderFactory.class);
+        if (failed) {
+            context.yield();
+        }
+    }
+
+    /**
+     * Writes FlowFiles and waits for all of them, streaming again the ones that failed because of a client disconnect.
+     * Returns true if any FlowFile was routed to failure.
+     */
+    private boolean writeWithRetries(final ProcessContext context, final ProcessSession session, List<FlowFile> flowFiles, int retries) {
+        boolean failed = false;
+
+        while (!flowFiles.isEmpty()) {
+            final IgniteDataStreamer<BinaryObject, BinaryObject> dataStreamer = igniteDataStreamer;
+            final AtomicBoolean dataStreamerFailed = new AtomicBoolean();
+            final Map<FlowFile, List<Record>> failedRecords = new HashMap<>();
+            final Map<FlowFile, RuntimeException> failures = streamFlowFiles(context, session, dataStreamer, flowFiles, failedRecords,
+                    () -> dataStreamerFailed.set(true));
+            if (dataStreamerFailed.get()) {
+                // A failed batch closes the DataStreamer, records were written through the cache instead
+                getLogger().warn("Ignite DataStreamer failed, recreating DataStreamer");
+                recreateIgniteDataStreamer(context, dataStreamer);
+            }
+            final List<FlowFile> disconnected = new ArrayList<>();
+            for (FlowFile flowFile : flowFiles) {
+                RuntimeException failure = failures.get(flowFile);
+                if (failure == null) {
+                    failed |= transferToSuccess(context, session, flowFile, failedRecords.get(flowFile));
+                } else if (RecordBatchStreamer.isClientDisconnected(failure) && retries + 1 < maxRetries) {
+                    disconnected.add(flowFile);
+                } else {
+                    transferToFailure(session, flowFile, failure);
+                    failed = true;
+                }
+            }
+            if (!disconnected.isEmpty()) {
+                retries++;
+                getLogger().error("Ignite client disconnected, recreating DataStreamer", failures.get(disconnected.get(0)));
+                recreateIgniteDataStreamer(context, dataStreamer);
+                backoff(context, retries);
+            }
+            flowFiles = disconnected;
+        }
+        return failed;
+    }
+
+    /**
+     * Routes the FlowFile to success. Records that could not be written are routed to failure in a new FlowFile.
+     * Returns true if there were any such records.
+     */
+    private boolean transferToSuccess(final ProcessContext context, final ProcessSession session, FlowFile flowFile, final List<Record> failedRecords) {
+        final boolean partiallyFailed = failedRecords != null && !failedRecords.isEmpty();
+        if (partiallyFailed) {
+            getLogger().error("{} records from {} could not be written to Ignite cache", new Object[]{failedRecords.size(), flowFile});
+            try {
+                session.transfer(writeFailedRecords(context, session, flowFile, failedRecords), REL_FAILURE);
+            } catch (ProcessException e) {
+                transferToFailure(session, flowFile, e);
+                return true;
+            }
+            flowFile = session.putAttribute(flowFile, "ignite.failed.record.count", String.valueOf(failedRecords.size()));
+        }
+        session.getProvenanceReporter().send(flowFile, "ignite://cache/" + getIgniteCache().getName() + "/");
+        session.transfer(flowFile, REL_SUCCESS);
+        return partiallyFailed;
+    }
+
+    private FlowFile writeFailedRecords(final ProcessContext context, final ProcessSession session, final FlowFile parent, final List<Record> failedRecords) {
+        final RecordSetWriterFactory writerFactory = context.getProperty(RECORD_WRITER).asControllerService(RecordSetWriterFactory.class);
+        final Map<String, String> attributes = new HashMap<>();
+        FlowFile failedFlowFile = session.create(parent);
+        try {
+            failedFlowFile = session.write(failedFlowFile, out -> {
+                try {
+                    final RecordSchema schema = writerFactory.getSchema(parent.getAttributes(), failedRecords.get(0).getSchema());
+                    try (final RecordSetWriter writer = writerFactory.createWriter(getLogger(), schema, out, parent)) {
+                        writer.beginRecordSet();
+                        for (Record record : failedRecords) {
+                            writer.write(record);
+                        }
+                        final WriteResult writeResult = writer.finishRecordSet();
+                        attributes.putAll(writeResult.getAttributes());
+                        attributes.put("record.count", String.valueOf(writeResult.getRecordCount()));
+                        attributes.put(CoreAttributes.MIME_TYPE.key(), writer.getMimeType());
+                    }
+                } catch (SchemaNotFoundException e) {
+                    throw new ProcessException("Could not determine schema for failed records", e);
+                }
+            });
+        } catch (ProcessException e) {
+            session.remove(failedFlowFile);
+            throw e;
+        }
+        return session.putAllAttributes(failedFlowFile, attributes);
+    }
+
+    private void transferToFailure(final ProcessSession session, final FlowFile flowFile, final RuntimeException failure) {
+        getLogger().error("Ignite cache write failure for {}", new Object[]{flowFile}, failure);
+        session.transfer(flowFile, REL_FAILURE);
+    }
+
+    private void backoff(final ProcessContext context, int retries) {
+        final long initialBackoff = context.getProperty(RETRY_BACKOFF).asTimePeriod(TimeUnit.MILLISECONDS);
+        final long maxBackoff = context.getProperty(MAX_RETRY_BACKOFF).asTimePeriod(TimeUnit.MILLISECONDS);
+        final long backoff = Math.min(maxBackoff, initialBackoff << Math.min(retries - 1, 30));
+        try {
+            Thread.sleep(backoff);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ProcessException("Interrupted while waiting to retry Ignite cache write", e);
+        }
+    }
+
+    /**
+     * Replaces the failed DataStreamer, unless another task already did. Batches that other tasks added to the failed
+     * DataStreamer are not cancelled, so they still complete or fail on their own.
+     */
+    private void recreateIgniteDataStreamer(final ProcessContext context, final IgniteDataStreamer<BinaryObject, BinaryObject> failed) {
+        synchronized (dataStreamerLock) {
+            if (igniteDataStreamer != failed) {
+                return;
+            }
+            try {
+                failed.close(false);
+            } catch (CacheException | IgniteException | IllegalStateException e) {
+                getLogger().debug("Exception while closing Ignite DataStreamer", e);
+            }
+            igniteDataStreamer = createIgniteDataStreamer(context);
+        }
+    }
+
+    /**
+     * Streams records of all FlowFiles to the DataStreamer and only then waits for the acknowledgements, so small
+     * FlowFiles share DataStreamer buffers instead of paying a round trip each. Returns failures of the FlowFiles
+     * that could not be written, and collects records that could not be written when failures are isolated.
+     */
+    private Map<FlowFile, RuntimeException> streamFlowFiles(final ProcessContext context, final ProcessSession session,
+                                                            final IgniteDataStreamer<BinaryObject, BinaryObject> dataStreamer, final List<FlowFile> flowFiles,
+                                                            final Map<FlowFile, List<Record>> failedRecords, final Runnable onBatchFailure) {
+        final Map<FlowFile, RuntimeException> failures = new HashMap<>();
+        final Map<FlowFile, RecordBatchStreamer> batchStreamers = new LinkedHashMap<>();
+
+        for (FlowFile flowFile : flowFiles) {
+            RecordBatchStreamer batchStreamer = createBatchStreamer(context, dataStreamer, onBatchFailure);
+            try {
+                streamFlowFile(context, session, flowFile, batchStreamer);
+                batchStreamers.put(flowFile, batchStreamer);
+            } catch (ProcessException | CacheException | IgniteException | IllegalStateException e) {
+                batchStreamer.cancel();
+                failures.put(flowFile, e);
+            }
+        }
+
+        for (Map.Entry<FlowFile, RecordBatchStreamer> entry : batchStreamers.entrySet()) {
+            try {
+                failedRecords.put(entry.getKey(), entry.getValue().await());
+            } catch (ProcessException | CacheException | IgniteException | IllegalStateException e) {
+                entry.getValue().cancel();
+                failures.put(entry.getKey(), e);
+            }
+        }
+        return failures;
+    }
+
+    private RecordBatchStreamer createBatchStreamer(final ProcessContext context, final IgniteDataStreamer<BinaryObject, BinaryObject> dataStreamer,
+                                                    final Runnable onBatchFailure) {
         final String[] keyFieldNames = context.getProperty(KEY_FIELD_NAMES).getValue().split(",");
         final String cacheKeyType = context.getProperty(CACHE_KEY_TYPE).getValue();
         final String cacheValueType = context.getProperty(CACHE_VALUE_TYPE).getValue();
-        final IgniteBinaryBuilder binaryBuilder = new IgniteBinaryBuilder(getIgnite().binary());
+        final int batchSize = context.getProperty(RECORD_BATCH_SIZE).asInteger();
+        final long batchMaxBytes = context.getProperty(RECORD_BATCH_MAX_BYTES).asDataSize(DataUnit.B).longValue();
+        final IgniteCache<BinaryObject, BinaryObject> fallbackCache = context.getProperty(RECORD_WRITER).isSet()
+                ? getIgniteCache().withKeepBinary() : null;
+        return new RecordBatchStreamer(dataStreamer, binaryBuilders::get,
+                cacheKeyType, cacheValueType, keyFieldNames, batchSize, batchMaxBytes, pendingBytes, conversionWorkers,
+                fallbackCache, onBatchFailure);
+    }
 
-        List<Map.Entry<BinaryObject, BinaryObject>> cacheItems = new ArrayList<>();
+    /**
+     * Reads records from the FlowFile and passes them to the DataStreamer in bounded batches, so the whole
+     * FlowFile is never held in memory.
+     */
+    private void streamFlowFile(final ProcessContext context, final ProcessSession session, final FlowFile flowFile, final RecordBatchStreamer batchStreamer) {
+        final RecordReaderFactory readerFactory = context.getProperty(RECORD_READER).asControllerService(RecordReaderFactory.class);
 
         session.read(flowFile, in -> {
-            try(final RecordReader reader = readerFactory.createRecordReader(flowFile.getAttributes(), in, flowFile.getSize(), getLogger())) {
+            final ByteCountingInputStream countingIn = new ByteCountingInputStream(in);
+            try(final RecordReader reader = readerFactory.createRecordReader(flowFile.getAttributes(), countingIn, flowFile.getSize(), getLogger())) {
+                long recordStartOffset = 0;
                 Record record;
                 while ((record = reader.nextRecord()) != null) {
-                    BinaryObject binaryKeyObject = binaryBuilder.fromMapRecord((MapRecord) record, cacheKeyType, keyFieldNames);
-                    BinaryObject binaryValueObject = binaryBuilder.fromMapRecord((MapRecord) record, cacheValueType);
-                    cacheItems.add(new AbstractMap.SimpleEntry<>(binaryKeyObject, binaryValueObject));
+                    final long recordEndOffset = countingIn.getBytesConsumed();
+                    batchStreamer.add(record, recordEndOffset - recordStartOffset);
+                    recordStartOffset = recordEndOffset;
                 }
-            } catch (SchemaNotFoundException | MalformedRecordException e) {
+            } catch (SchemaNotFoundException | MalformedRecordException | IllegalTypeConversionException e) {
                 throw new ProcessException("Could not parse incoming data", e);
             }
         });
-
-        int retries = 0;
-
-        while (retries < maxRetries && !cacheItems.isEmpty()) {
-            try {
-                IgniteFuture<?> futures = igniteDataStreamer.addData(cacheItems);
-                Object result = futures.get();
-                getLogger().trace("Result {} of addData", new Object[]{result});
-                cacheItems.clear();
-                session.getProvenanceReporter().send(flowFile, "ignite://cache/" + getIgniteCache().getName() + "/");
-            } catch (CacheException e) {
-                Throwable cause = e.getCause();
-                if (cause instanceof IgniteClientDisconnectedException) {
-                    getLogger().error("Ignite client disconnected, recreating DataStreamer", e);
-                    igniteDataStreamer = null;
-                    initializeIgniteDataStreamer(context);
-                    retries++;
-                }
-            } catch (IgniteInterruptedException | IllegalStateException | IgniteDataStreamerTimeoutException e) {
-                getLogger().error("Ignite cache write failure", e);
-                session.transfer(flowFile, REL_FAILURE);
-                context.yield();
-                return;
-            }
-        }
-        session.transfer(flowFile, REL_SUCCESS);
     }
 }
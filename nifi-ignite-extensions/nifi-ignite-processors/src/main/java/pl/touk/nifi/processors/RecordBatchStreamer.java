@@ -0,0 +1,311 @@
+package pl.touk.nifi.processors;
+
+import org.apache.ignite.IgniteCache;
+import org.apache.ignite.IgniteClientDisconnectedException;
+import org.apache.ignite.IgniteDataStreamer;
+import org.apache.ignite.IgniteException;
+import org.apache.ignite.binary.BinaryObject;
+import org.apache.ignite.lang.IgniteFuture;
+import org.apache.nifi.processor.exception.ProcessException;
+import org.apache.nifi.serialization.record.MapRecord;
+import org.apache.nifi.serialization.record.Record;
+import org.apache.nifi.serialization.record.util.IllegalTypeConversionException;
+import pl.touk.nifi.ignite.IgniteBinaryBuilder;
+
+import javax.cache.CacheException;
+import java.util.AbstractMap;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.function.Supplier;
+
+/**
+ * Passes records of a single FlowFile to the DataStreamer in bounded batches. Records are converted to binary
+ * objects either on the calling thread or, when conversion workers are given, on the worker chosen by the hash
+ * of the record key, so records with the same key are converted and added to the DataStreamer in FlowFile order.
+ * <p>
+ * A batch is passed on when it reaches either the record count or the size of FlowFile content it was read from.
+ * That size is taken from the shared pending bytes budget until the batch is acknowledged, so records waiting
+ * for the cluster never take more heap than the budget allows, however slow the cluster is.
+ * <p>
+ * When a fallback cache is given, failures are isolated: entries of a failed batch are put into the cache one by one
+ * and only the records that still fail are reported, instead of failing the whole FlowFile. Records whose values
+ * cannot be converted to their field types are reported the same way. A failed batch closes the DataStreamer, so
+ * batches added after that are put into the cache the same way. Client disconnects always fail the whole FlowFile.
+ */
+class RecordBatchStreamer {
+
+    private final IgniteDataStreamer<BinaryObject, BinaryObject> dataStreamer;
+
+    private final Supplier<IgniteBinaryBuilder> binaryBuilders;
+
+    private final String cacheKeyType;
+
+    private final String cacheValueType;
+
+    private final String[] keyFieldNames;
+
+    private final int batchSize;
+
+    private final long batchMaxBytes;
+
+    private final ByteBudget pendingBytes;
+
+    private final ExecutorService[] workers;
+
+    private final IgniteCache<BinaryObject, BinaryObject> fallbackCache;
+
+    private final Runnable onBatchFailure;
+
+    private final List<List<Record>> batches;
+
+    private final long[] batchBytes;
+
+    private final Deque<Future<PendingWrite>> pendingConversions = new ArrayDeque<>();
+
+    private final List<PendingWrite> pendingWrites = new ArrayList<>();
+
+    RecordBatchStreamer(IgniteDataStreamer<BinaryObject, BinaryObject> dataStreamer, Supplier<IgniteBinaryBuilder> binaryBuilders,
+                        String cacheKeyType, String cacheValueType, String[] keyFieldNames, int batchSize, long batchMaxBytes,
+                        ByteBudget pendingBytes, ExecutorService[] workers, IgniteCache<BinaryObject, BinaryObject> fallbackCache,
+                        Runnable onBatchFailure) {
+        this.dataStreamer = dataStreamer;
+        this.binaryBuilders = binaryBuilders;
+        this.cacheKeyType = cacheKeyType;
+        this.cacheValueType = cacheValueType;
+        this.keyFieldNames = keyFieldNames;
+        this.batchSize = batchSize;
+        this.batchMaxBytes = batchMaxBytes;
+        this.pendingBytes = pendingBytes;
+        this.workers = workers;
+        this.fallbackCache = fallbackCache;
+        this.onBatchFailure = onBatchFailure;
+        this.batches = new ArrayList<>();
+        for (int i = 0; i < Math.max(workers.length, 1); i++) {
+            batches.add(new ArrayList<>(batchSize));
+        }
+        this.batchBytes = new long[batches.size()];
+    }
+
+    /**
+     * @param recordBytes size of FlowFile content the record was read from
+     */
+    void add(Record record, long recordBytes) {
+        int lane = workers.length == 0 ? 0 : Math.floorMod(keyHash(record), workers.length);
+        List<Record> batch = batches.get(lane);
+        batch.add(record);
+        batchBytes[lane] += recordBytes;
+        if (batch.size() >= batchSize || batchBytes[lane] >= batchMaxBytes) {
+            flush(lane);
+        }
+    }
+
+    void flush() {
+        for (int lane = 0; lane < batches.size(); lane++) {
+            if (!batches.get(lane).isEmpty()) {
+                flush(lane);
+            }
+        }
+    }
+
+    /**
+     * Flushes remaining records and waits until every batch has been acknowledged by the cluster.
+     * Returns records that could not be written, which is always empty unless failures are isolated.
+     */
+    List<Record> await() {
+        flush();
+        while (!pendingConversions.isEmpty()) {
+            pendingWrites.add(getConverted(pendingConversions.poll()));
+        }
+        List<Record> failedRecords = new ArrayList<>();
+        for (PendingWrite pendingWrite : pendingWrites) {
+            failedRecords.addAll(pendingWrite.unconvertible);
+            if (pendingWrite.future == null) {
+                failedRecords.addAll(putEntryByEntry(pendingWrite));
+                continue;
+            }
+            try {
+                pendingWrite.future.get();
+            } catch (CacheException | IgniteException e) {
+                onBatchFailure.run();
+                if (fallbackCache == null || isClientDisconnected(e)) {
+                    throw e;
+                }
+                failedRecords.addAll(putEntryByEntry(pendingWrite));
+            }
+        }
+        pendingWrites.clear();
+        return failedRecords;
+    }
+
+    void cancel() {
+        // Conversions hold pending bytes, so they are left to complete and release them
+        while (!pendingConversions.isEmpty()) {
+            try {
+                getConverted(pendingConversions.poll());
+            } catch (RuntimeException e) {
+                // Already failed
+            }
+        }
+        pendingWrites.clear();
+        batches.forEach(List::clear);
+        Arrays.fill(batchBytes, 0);
+    }
+
+    static boolean isClientDisconnected(RuntimeException e) {
+        return e instanceof IgniteClientDisconnectedException || e.getCause() instanceof IgniteClientDisconnectedException;
+    }
+
+    private void flush(int lane) {
+        final List<Record> batch = batches.get(lane);
+        batches.set(lane, new ArrayList<>(batchSize));
+        // Sends batches buffered by the DataStreamer while waiting, so they can be acknowledged
+        final int permits = pendingBytes.acquire(batchBytes[lane], dataStreamer::tryFlush);
+        batchBytes[lane] = 0;
+        if (workers.length == 0) {
+            pendingWrites.add(write(batch, permits));
+        } else {
+            pendingConversions.add(workers[lane].submit(() -> write(batch, permits)));
+            // Bounds the number of batches waiting for conversion when records are read faster than converted
+            while (pendingConversions.size() > 2 * workers.length) {
+                pendingWrites.add(getConverted(pendingConversions.poll()));
+            }
+        }
+        removeCompleted();
+    }
+
+    private PendingWrite write(List<Record> records, int permits) {
+        List<Record> converted = new ArrayList<>(records.size());
+        List<Record> unconvertible = new ArrayList<>();
+        List<Map.Entry<BinaryObject, BinaryObject>> cacheItems = new ArrayList<>(records.size());
+        IgniteFuture<?> future;
+        try {
+            IgniteBinaryBuilder binaryBuilder = binaryBuilders.get();
+            for (Record record : records) {
+                BinaryObject binaryKeyObject;
+                BinaryObject binaryValueObject;
+                try {
+                    binaryKeyObject = binaryBuilder.fromMapRecord((MapRecord) record, cacheKeyType, keyFieldNames);
+                    binaryValueObject = binaryBuilder.fromMapRecord((MapRecord) record, cacheValueType);
+                } catch (IllegalTypeConversionException e) {
+                    if (fallbackCache == null) {
+                        throw new ProcessException("Could not convert record to Ignite binary object", e);
+                    }
+                    unconvertible.add(record);
+                    continue;
+                }
+                converted.add(record);
+                cacheItems.add(new AbstractMap.SimpleEntry<>(binaryKeyObject, binaryValueObject));
+            }
+            if (cacheItems.isEmpty()) {
+                pendingBytes.release(permits);
+                return new PendingWrite(null, null, null, unconvertible);
+            }
+            future = dataStreamer.addData(cacheItems);
+        } catch (IllegalStateException e) {
+            pendingBytes.release(permits);
+            if (fallbackCache == null) {
+                throw e;
+            }
+            // The DataStreamer was closed by an earlier failed batch
+            onBatchFailure.run();
+            return new PendingWrite(null, converted, cacheItems, unconvertible);
+        } catch (RuntimeException e) {
+            pendingBytes.release(permits);
+            throw e;
+        }
+        future.listen(f -> pendingBytes.release(permits));
+        return fallbackCache == null
+                ? new PendingWrite(future, null, null, null) : new PendingWrite(future, converted, cacheItems, unconvertible);
+    }
+
+    private List<Record> putEntryByEntry(PendingWrite pendingWrite) {
+        boolean allowOverwrite = dataStreamer.allowOverwrite();
+        List<IgniteFuture<?>> futures = new ArrayList<>(pendingWrite.cacheItems.size());
+        for (Map.Entry<BinaryObject, BinaryObject> cacheItem : pendingWrite.cacheItems) {
+            futures.add(allowOverwrite
+                    ? fallbackCache.putAsync(cacheItem.getKey(), cacheItem.getValue())
+                    : fallbackCache.putIfAbsentAsync(cacheItem.getKey(), cacheItem.getValue()));
+        }
+        List<Record> failedRecords = new ArrayList<>();
+        for (int i = 0; i < futures.size(); i++) {
+            try {
+                futures.get(i).get();
+            } catch (CacheException | IgniteException e) {
+                if (isClientDisconnected(e)) {
+                    throw e;
+                }
+                failedRecords.add(pendingWrite.records.get(i));
+            }
+        }
+        return failedRecords;
+    }
+
+    private int keyHash(Record record) {
+        int hash = 1;
+        for (String keyFieldName : keyFieldNames) {
+            hash = 31 * hash + Objects.hashCode(record.getValue(keyFieldName));
+        }
+        return hash;
+    }
+
+    /**
+     * Drops already acknowledged batches from the pending list. Unless failures are isolated, fails fast
+     * if any of them failed, otherwise failed batches are kept until {@link #await()}.
+     */
+    private void removeCompleted() {
+        Iterator<PendingWrite> it = pendingWrites.iterator();
+        while (it.hasNext()) {
+            IgniteFuture<?> future = it.next().future;
+            if (future != null && future.isDone()) {
+                try {
+                    future.get();
+                    it.remove();
+                } catch (CacheException | IgniteException e) {
+                    onBatchFailure.run();
+                    if (fallbackCache == null || isClientDisconnected(e)) {
+                        throw e;
+                    }
+                }
+            }
+        }
+    }
+
+    private static PendingWrite getConverted(Future<PendingWrite> conversion) {
+        try {
+            return conversion.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ProcessException("Interrupted while waiting for record conversion", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new ProcessException("Record conversion failed", e.getCause());
+        }
+    }
+
+    private static class PendingWrite {
+        private final IgniteFuture<?> future;
+        private final List<Record> records;
+        private final List<Map.Entry<BinaryObject, BinaryObject>> cacheItems;
+        private final List<Record> unconvertible;
+
+        PendingWrite(IgniteFuture<?> future, List<Record> records, List<Map.Entry<BinaryObject, BinaryObject>> cacheItems,
+                     List<Record> unconvertible) {
+            this.future = future;
+            this.records = records == null ? Collections.emptyList() : records;
+            this.cacheItems = cacheItems == null ? Collections.emptyList() : cacheItems;
+            this.unconvertible = unconvertible == null ? Collections.emptyList() : unconvertible;
+        }
+    }
+}
@@ -0,0 +1,199 @@
+package pl.touk.nifi.ignite;
+
+import org.apache.ignite.Ignite;
+import org.apache.ignite.binary.BinaryObject;
+import org.apache.ignite.binary.BinaryObjectException;
+import org.apache.ignite.binary.BinaryType;
+import org.apache.nifi.serialization.SimpleRecordSchema;
+import org.apache.nifi.serialization.record.MapRecord;
+import org.apache.nifi.serialization.record.RecordField;
+import org.apache.nifi.serialization.record.RecordFieldType;
+import org.apache.nifi.serialization.record.RecordSchema;
+import org.apache.nifi.serialization.record.util.IllegalTypeConversionException;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import pl.touk.nifi.ignite.testutil.IgniteTestUtil;
+import pl.touk.nifi.ignite.testutil.PortFinder;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.sql.Time;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class IgniteBinaryBuilderTest {
+
+    private static Ignite igniteServer;
+
+    private final RecordSchema personSchema = new SimpleRecordSchema(Arrays.asList(
+            new RecordField("first_name", RecordFieldType.STRING.getDataType()),
+            new RecordField("last_name", RecordFieldType.STRING.getDataType()),
+            new RecordField("age", RecordFieldType.INT.getDataType())
+    ));
+
+    @BeforeClass
+    public static void setupIgnite() throws IOException {
+        igniteServer = IgniteTestUtil.startServer(PortFinder.getAvailablePort());
+    }
+
+    @AfterClass
+    public static void closeIgnite() {
+        igniteServer.close();
+    }
+
+    @Test
+    public void testKeyAndValueObjects() {
+        IgniteBinaryBuilder binaryBuilder = new IgniteBinaryBuilder(igniteServer.binary());
+        String[] keyFieldNames = { "first_name", "last_name" };
+
+        MapRecord john = person("John", "Doe", 42);
+        BinaryObject johnKey = binaryBuilder.fromMapRecord(john, "person_key", keyFieldNames);
+        BinaryObject johnValue = binaryBuilder.fromMapRecord(john, "person");
+
+        assertEquals("person_key", johnKey.type().typeName());
+        assertEquals("John", johnKey.field("first_name"));
+        assertEquals("Doe", johnKey.field("last_name"));
+        assertFalse(johnKey.hasField("age"));
+
+        assertEquals("person", johnValue.type().typeName());
+        assertEquals(42, (int) johnValue.field("age"));
+
+        // Mappings are reused for records with an equal schema, objects built earlier must stay intact
+        MapRecord jane = person("Jane", "Doe", 35);
+        BinaryObject janeValue = binaryBuilder.fromMapRecord(jane, "person");
+        assertEquals("Jane", janeValue.field("first_name"));
+        assertEquals(35, (int) janeValue.field("age"));
+        assertEquals("John", johnValue.field("first_name"));
+        assertTrue(johnKey.hasField("first_name"));
+    }
+
+    @Test
+    public void testBinaryTypeRegisteredFromSchema() {
+        IgniteBinaryBuilder binaryBuilder = new IgniteBinaryBuilder(igniteServer.binary());
+
+        MapRecord nobody = new MapRecord(new SimpleRecordSchema(personSchema.getFields()), new HashMap<>());
+        binaryBuilder.fromMapRecord(nobody, "registered_person");
+
+        // Field types come from the schema even though only nulls were written
+        BinaryType binaryType = igniteServer.binary().type("registered_person");
+        assertEquals("String", binaryType.fieldTypeName("first_name"));
+        assertEquals("int", binaryType.fieldTypeName("age"));
+    }
+
+    @Test(expected = BinaryObjectException.class)
+    public void testConflictingFieldTypeRejected() {
+        new IgniteBinaryBuilder(igniteServer.binary()).fromMapRecord(person("John", "Doe", 42), "conflicting_person");
+
+        RecordSchema longAgeSchema = new SimpleRecordSchema(Arrays.asList(
+                new RecordField("first_name", RecordFieldType.STRING.getDataType()),
+                new RecordField("age", RecordFieldType.LONG.getDataType())
+        ));
+        Map<String, Object> values = new HashMap<>();
+        values.put("first_name", "Jane");
+        values.put("age", 35L);
+        new IgniteBinaryBuilder(igniteServer.binary()).fromMapRecord(new MapRecord(longAgeSchema, values), "conflicting_person");
+    }
+
+    @Test
+    public void testSchemaDriftRejected() {
+        new IgniteBinaryBuilder(igniteServer.binary(), true).fromMapRecord(person("John", "Doe", 42), "drifting_person");
+
+        RecordSchema extendedSchema = new SimpleRecordSchema(Arrays.asList(
+                new RecordField("first_name", RecordFieldType.STRING.getDataType()),
+                new RecordField("email", RecordFieldType.STRING.getDataType())
+        ));
+        Map<String, Object> values = new HashMap<>();
+        values.put("first_name", "Jane");
+        values.put("email", "jane@doe.com");
+        MapRecord jane = new MapRecord(extendedSchema, values);
+
+        try {
+            new IgniteBinaryBuilder(igniteServer.binary(), true).fromMapRecord(jane, "drifting_person");
+            fail("Schema adding fields should be rejected");
+        } catch (BinaryObjectException e) {
+            assertNull(igniteServer.binary().type("drifting_person").fieldTypeName("email"));
+        }
+
+        BinaryObject janeValue = new IgniteBinaryBuilder(igniteServer.binary(), false).fromMapRecord(jane, "drifting_person");
+        assertEquals("jane@doe.com", janeValue.field("email"));
+    }
+
+    @Test
+    public void testNativeTypeConversion() {
+        RecordSchema addressSchema = new SimpleRecordSchema(Arrays.asList(
+                new RecordField("city", RecordFieldType.STRING.getDataType()),
+                new RecordField("zip", RecordFieldType.INT.getDataType())
+        ));
+        RecordSchema customerSchema = new SimpleRecordSchema(Arrays.asList(
+                new RecordField("name", RecordFieldType.STRING.getDataType()),
+                new RecordField("balance", RecordFieldType.DECIMAL.getDecimalDataType(10, 2)),
+                new RecordField("visits", RecordFieldType.BIGINT.getDataType()),
+                new RecordField("scores", RecordFieldType.ARRAY.getArrayDataType(RecordFieldType.INT.getDataType())),
+                new RecordField("tags", RecordFieldType.ARRAY.getArrayDataType(RecordFieldType.STRING.getDataType())),
+                new RecordField("opens_at", RecordFieldType.TIME.getDataType()),
+                new RecordField("address", RecordFieldType.RECORD.getRecordDataType(addressSchema))
+        ));
+        Map<String, Object> address = new HashMap<>();
+        address.put("city", "Warsaw");
+        address.put("zip", "10001");
+        Map<String, Object> values = new HashMap<>();
+        values.put("name", "John");
+        values.put("balance", 10.5d);
+        values.put("visits", BigInteger.valueOf(7));
+        values.put("scores", new Object[] { 1, 2, 3 });
+        values.put("tags", new Object[] { "new", "vip" });
+        values.put("opens_at", new Time(3600000));
+        values.put("address", new MapRecord(addressSchema, address));
+
+        BinaryObject customer = new IgniteBinaryBuilder(igniteServer.binary(), false, 2)
+                .fromMapRecord(new MapRecord(customerSchema, values), "customer");
+
+        assertEquals(new BigDecimal("10.50"), customer.field("balance"));
+        assertEquals(BigDecimal.valueOf(7), customer.field("visits"));
+        assertArrayEquals(new int[] { 1, 2, 3 }, customer.field("scores"));
+        assertArrayEquals(new String[] { "new", "vip" }, customer.field("tags"));
+        assertEquals(new Time(3600000), customer.field("opens_at"));
+
+        BinaryObject customerAddress = customer.field("address");
+        assertEquals("customer_address", customerAddress.type().typeName());
+        assertEquals(10001, (int) customerAddress.field("zip"));
+
+        BinaryType binaryType = igniteServer.binary().type("customer");
+        assertEquals("decimal", binaryType.fieldTypeName("balance"));
+        assertEquals("int[]", binaryType.fieldTypeName("scores"));
+        assertEquals("String[]", binaryType.fieldTypeName("tags"));
+        assertEquals("Time", binaryType.fieldTypeName("opens_at"));
+        assertEquals("Object", binaryType.fieldTypeName("address"));
+    }
+
+    @Test(expected = IllegalTypeConversionException.class)
+    public void testUnconvertibleValueRejected() {
+        RecordSchema accountSchema = new SimpleRecordSchema(Arrays.asList(
+                new RecordField("name", RecordFieldType.STRING.getDataType()),
+                new RecordField("balance", RecordFieldType.DECIMAL.getDecimalDataType(10, 2))
+        ));
+        Map<String, Object> values = new HashMap<>();
+        values.put("name", "John");
+        values.put("balance", "abc");
+
+        new IgniteBinaryBuilder(igniteServer.binary()).fromMapRecord(new MapRecord(accountSchema, values), "account");
+    }
+
+    private MapRecord person(String firstName, String lastName, int age) {
+        Map<String, Object> values = new HashMap<>();
+        values.put("first_name", firstName);
+        values.put("last_name", lastName);
+        values.put("age", age);
+        return new MapRecord(new SimpleRecordSchema(personSchema.getFields()), values);
+    }
+}
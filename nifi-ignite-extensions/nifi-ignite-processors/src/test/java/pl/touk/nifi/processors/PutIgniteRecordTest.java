@@ -1,28 +1,47 @@
 package pl.touk.nifi.processors;
 
 import org.apache.ignite.Ignite;
+import org.apache.nifi.controller.AbstractControllerService;
 import org.apache.nifi.csv.CSVReader;
+import org.apache.nifi.csv.CSVRecordSetWriter;
 import org.apache.nifi.csv.CSVUtils;
+import org.apache.nifi.logging.ComponentLog;
 import org.apache.nifi.processor.Relationship;
 import org.apache.nifi.reporting.InitializationException;
 import org.apache.nifi.schema.access.SchemaAccessUtils;
+import org.apache.nifi.serialization.RecordReader;
+import org.apache.nifi.serialization.RecordReaderFactory;
+import org.apache.nifi.serialization.SimpleRecordSchema;
+import org.apache.nifi.serialization.record.MapRecord;
+import org.apache.nifi.serialization.record.Record;
+import org.apache.nifi.serialization.record.RecordField;
+import org.apache.nifi.serialization.record.RecordFieldType;
+import org.apache.nifi.serialization.record.RecordSchema;
+import org.apache.nifi.util.MockFlowFile;
 import org.apache.nifi.util.TestRunner;
 import org.apache.nifi.util.TestRunners;
 import org.junit.After;
+import org.junit.AfterClass;
 import org.junit.Before;
 import org.junit.BeforeClass;
 import org.junit.Test;
 import pl.touk.nifi.ignite.testutil.IgniteTestUtil;
 import pl.touk.nifi.ignite.testutil.PortFinder;
 
+import java.io.BufferedReader;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
 import java.sql.*;
 import java.time.Instant;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 
 public class PutIgniteRecordTest {
 
@@ -30,6 +49,10 @@ public class PutIgniteRecordTest {
             .name("success")
             .build();
 
+    private final Relationship failure = new Relationship.Builder()
+            .name("failure")
+            .build();
+
     private final String personCsvSchema =
             "{ \"type\": \"record\", \"name\": \"person\", \"fields\": " +
                     "[ { \"name\": \"first_name\", \"type\": \"string\" }, " +
@@ -90,7 +113,6 @@ public class PutIgniteRecordTest {
     public void after() throws SQLException {
         conn.prepareStatement("DELETE FROM person").execute();
         conn.close();
-        igniteServer.close();
     }
 
     @Test
@@ -133,6 +155,178 @@ public class PutIgniteRecordTest {
         assertEquals(updatedJohn.age, 43);
     }
 
+    @Test
+    public void testProcessorWithManyBatches() throws SQLException {
+        runner.setProperty(PutIgniteRecord.RECORD_BATCH_SIZE, "1");
+
+        String flowFileContent = "John;Doe;360720000;42\nJane;Doe;802483200;35\nJack;Doe;802483200;12\n";
+        runner.enqueue(flowFileContent, flowFileAttributes);
+        runner.run(1);
+        runner.assertAllFlowFilesTransferred(success, 1);
+
+        ResultSet countResult = conn.prepareStatement("SELECT COUNT(*) FROM person").executeQuery();
+        assert(countResult.next());
+        assertEquals(3, countResult.getInt(1));
+
+        Person jane = selectPerson(queryJane);
+        assertEquals(jane.age, 35);
+    }
+
+    @Test
+    public void testProcessorWithPendingBytesLimit() throws SQLException {
+        // Every batch is larger than the limit, so each one waits until the previous one is acknowledged
+        runner.setProperty(PutIgniteRecord.RECORD_BATCH_SIZE, "1");
+        runner.setProperty(PutIgniteRecord.MAX_PENDING_BYTES, "10 B");
+
+        String flowFileContent = "John;Doe;360720000;42\nJane;Doe;802483200;35\nJack;Doe;802483200;12\n";
+        runner.enqueue(flowFileContent, flowFileAttributes);
+        runner.run(1);
+        runner.assertAllFlowFilesTransferred(success, 1);
+
+        ResultSet countResult = conn.prepareStatement("SELECT COUNT(*) FROM person").executeQuery();
+        assert(countResult.next());
+        assertEquals(3, countResult.getInt(1));
+    }
+
+    @Test
+    public void testProcessorWithConversionThreads() throws SQLException {
+        runner.setProperty(PutIgniteRecord.RECORD_BATCH_SIZE, "1");
+        runner.setProperty(PutIgniteRecord.RECORD_CONVERSION_THREADS, "4");
+
+        String flowFileContent = "John;Doe;360720000;42\nJane;Doe;802483200;35\nJack;Doe;802483200;12\nJohn;Doe;360720000;43\n";
+        runner.enqueue(flowFileContent, flowFileAttributes);
+        runner.run(1);
+        runner.assertAllFlowFilesTransferred(success, 1);
+
+        ResultSet countResult = conn.prepareStatement("SELECT COUNT(*) FROM person").executeQuery();
+        assert(countResult.next());
+        assertEquals(3, countResult.getInt(1));
+
+        // Records with the same key are written in FlowFile order
+        Person john = selectPerson(queryJohn);
+        assertEquals(john.age, 43);
+    }
+
+    @Test
+    public void testProcessorWithFlowFileBatch() throws SQLException {
+        runner.setProperty(PutIgniteRecord.FLOWFILE_BATCH_SIZE, "2");
+
+        runner.enqueue("John;Doe;360720000;42\n", flowFileAttributes);
+        runner.enqueue("Jane;Doe;802483200;35\n", flowFileAttributes);
+        runner.enqueue("Jack;Doe;802483200;12\n", flowFileAttributes);
+        runner.run(1);
+        runner.assertAllFlowFilesTransferred(success, 2);
+        runner.assertQueueNotEmpty();
+
+        runner.run(1);
+        runner.assertAllFlowFilesTransferred(success, 3);
+        runner.assertQueueEmpty();
+
+        ResultSet countResult = conn.prepareStatement("SELECT COUNT(*) FROM person").executeQuery();
+        assert(countResult.next());
+        assertEquals(3, countResult.getInt(1));
+    }
+
+    @Test
+    public void testProcessorRoutesFailedRecordsOnly() throws SQLException, InitializationException {
+        conn.prepareStatement("CREATE TABLE IF NOT EXISTS short_name_person (first_name VARCHAR(4), last_name VARCHAR, birthday TIMESTAMP, age INT, PRIMARY KEY (first_name, last_name)) WITH \"CACHE_NAME=short_name_person,KEY_TYPE=short_name_person_key,VALUE_TYPE=short_name_person\"").execute();
+        try {
+            CSVRecordSetWriter csvWriter = new CSVRecordSetWriter();
+            runner.addControllerService("csv-writer", csvWriter);
+            runner.enableControllerService(csvWriter);
+            runner.setProperty(PutIgniteRecord.RECORD_WRITER.getName(), "csv-writer");
+            runner.setProperty(PutIgniteRecord.CACHE_NAME.getName(), "short_name_person");
+            runner.setProperty(PutIgniteRecord.CACHE_KEY_TYPE.getName(), "short_name_person_key");
+            runner.setProperty(PutIgniteRecord.CACHE_VALUE_TYPE.getName(), "short_name_person");
+
+            String flowFileContent = "John;Doe;360720000;42\nJonathan;Doe;802483200;35\nJack;Doe;802483200;12\n";
+            runner.enqueue(flowFileContent, flowFileAttributes);
+            runner.run(1);
+
+            runner.assertTransferCount(success, 1);
+            runner.assertTransferCount(failure, 1);
+            runner.getFlowFilesForRelationship(success).get(0).assertAttributeEquals("ignite.failed.record.count", "1");
+            MockFlowFile failed = runner.getFlowFilesForRelationship(failure).get(0);
+            failed.assertAttributeEquals("record.count", "1");
+            assertTrue(failed.getContent().contains("Jonathan"));
+
+            ResultSet countResult = conn.prepareStatement("SELECT COUNT(*) FROM short_name_person").executeQuery();
+            assert(countResult.next());
+            assertEquals(2, countResult.getInt(1));
+        } finally {
+            conn.prepareStatement("DROP TABLE short_name_person").execute();
+        }
+    }
+
+    @Test
+    public void testProcessorRoutesUnconvertibleFlowFileToFailure() throws SQLException, InitializationException {
+        useUncoercedReader();
+
+        String flowFileContent = "John;Doe;360720000;42\nJane;Doe;802483200;unknown\n";
+        runner.enqueue(flowFileContent, flowFileAttributes);
+        runner.run(1);
+        runner.assertAllFlowFilesTransferred(failure, 1);
+        runner.assertQueueEmpty();
+
+        ResultSet countResult = conn.prepareStatement("SELECT COUNT(*) FROM person").executeQuery();
+        assert(countResult.next());
+        assertEquals(0, countResult.getInt(1));
+    }
+
+    @Test
+    public void testProcessorRoutesUnconvertibleRecordsOnly() throws SQLException, InitializationException {
+        useUncoercedReader();
+        CSVRecordSetWriter csvWriter = new CSVRecordSetWriter();
+        runner.addControllerService("csv-writer", csvWriter);
+        runner.enableControllerService(csvWriter);
+        runner.setProperty(PutIgniteRecord.RECORD_WRITER.getName(), "csv-writer");
+
+        String flowFileContent = "John;Doe;360720000;42\nJane;Doe;802483200;unknown\nJack;Doe;802483200;12\n";
+        runner.enqueue(flowFileContent, flowFileAttributes);
+        runner.run(1);
+
+        runner.assertTransferCount(success, 1);
+        runner.assertTransferCount(failure, 1);
+        runner.getFlowFilesForRelationship(success).get(0).assertAttributeEquals("ignite.failed.record.count", "1");
+        MockFlowFile failed = runner.getFlowFilesForRelationship(failure).get(0);
+        failed.assertAttributeEquals("record.count", "1");
+        assertTrue(failed.getContent().contains("Jane"));
+
+        ResultSet countResult = conn.prepareStatement("SELECT COUNT(*) FROM person").executeQuery();
+        assert(countResult.next());
+        assertEquals(2, countResult.getInt(1));
+    }
+
+    @Test
+    public void testProcessorRoutesRecordWithNullInPrimitiveArrayOnly() throws SQLException, InitializationException {
+        useUncoercedReader();
+        CSVRecordSetWriter csvWriter = new CSVRecordSetWriter();
+        runner.addControllerService("csv-writer", csvWriter);
+        runner.enableControllerService(csvWriter);
+        runner.setProperty(PutIgniteRecord.RECORD_WRITER.getName(), "csv-writer");
+
+        String flowFileContent = "John;Doe;360720000;42;1,2\nJane;Doe;802483200;35;3,null\nJack;Doe;802483200;12;4\n";
+        runner.enqueue(flowFileContent, flowFileAttributes);
+        runner.run(1);
+
+        runner.assertTransferCount(success, 1);
+        runner.assertTransferCount(failure, 1);
+        runner.getFlowFilesForRelationship(success).get(0).assertAttributeEquals("ignite.failed.record.count", "1");
+        MockFlowFile failed = runner.getFlowFilesForRelationship(failure).get(0);
+        failed.assertAttributeEquals("record.count", "1");
+        assertTrue(failed.getContent().contains("Jane"));
+
+        ResultSet countResult = conn.prepareStatement("SELECT COUNT(*) FROM person").executeQuery();
+        assert(countResult.next());
+        assertEquals(2, countResult.getInt(1));
+    }
+
+    private void useUncoercedReader() throws InitializationException {
+        runner.addControllerService("uncoerced-reader", new UncoercedPersonReader());
+        runner.enableControllerService(runner.getControllerService("uncoerced-reader"));
+        runner.setProperty(PutIgniteRecord.RECORD_READER.getName(), "uncoerced-reader");
+    }
+
     @BeforeClass
     public static void setupIgnite() throws IOException {
         ignitePort = PortFinder.getAvailablePort();
@@ -141,6 +335,11 @@ public class PutIgniteRecordTest {
         igniteServer = IgniteTestUtil.startServer(ignitePort, clientConnectorPort);
     }
 
+    @AfterClass
+    public static void closeIgnite() {
+        igniteServer.close();
+    }
+
     private Person selectPerson(PreparedStatement query) throws SQLException {
         ResultSet resultSet = query.executeQuery();
         assert(resultSet.next());
@@ -150,6 +349,57 @@ public class PutIgniteRecordTest {
         );
     }
 
+    /**
+     * Reads ';' separated persons without coercing ages to the schema type, so invalid ages reach the processor.
+     * An optional fifth column holds ',' separated scores, where "null" is a null element.
+     */
+    public static class UncoercedPersonReader extends AbstractControllerService implements RecordReaderFactory {
+
+        private static final RecordSchema SCHEMA = new SimpleRecordSchema(Arrays.asList(
+                new RecordField("first_name", RecordFieldType.STRING.getDataType()),
+                new RecordField("last_name", RecordFieldType.STRING.getDataType()),
+                new RecordField("birthday", RecordFieldType.TIMESTAMP.getDataType()),
+                new RecordField("age", RecordFieldType.INT.getDataType()),
+                new RecordField("scores", RecordFieldType.ARRAY.getArrayDataType(RecordFieldType.INT.getDataType()))
+        ));
+
+        @Override
+        public RecordReader createRecordReader(Map<String, String> variables, InputStream in, long inputLength, ComponentLog logger) {
+            BufferedReader lines = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+            return new RecordReader() {
+                @Override
+                public Record nextRecord(boolean coerceTypes, boolean dropUnknownFields) throws IOException {
+                    String line = lines.readLine();
+                    if (line == null) {
+                        return null;
+                    }
+                    String[] fields = line.split(";");
+                    Map<String, Object> values = new HashMap<>();
+                    values.put("first_name", fields[0]);
+                    values.put("last_name", fields[1]);
+                    values.put("birthday", Long.parseLong(fields[2]));
+                    values.put("age", fields[3]);
+                    if (fields.length > 4) {
+                        values.put("scores", Arrays.stream(fields[4].split(","))
+                                .map(score -> score.equals("null") ? null : Integer.valueOf(score))
+                                .toArray());
+                    }
+                    return new MapRecord(SCHEMA, values);
+                }
+
+                @Override
+                public RecordSchema getSchema() {
+                    return SCHEMA;
+                }
+
+                @Override
+                public void close() throws IOException {
+                    lines.close();
+                }
+            };
+        }
+    }
+
     static class Person {
         private final String firstName;
         private final String lastName;
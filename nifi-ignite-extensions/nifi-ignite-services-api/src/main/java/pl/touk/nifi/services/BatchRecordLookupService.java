@@ -0,0 +1,21 @@
+package pl.touk.nifi.services;
+
+import org.apache.nifi.lookup.LookupFailureException;
+import org.apache.nifi.lookup.RecordLookupService;
+import org.apache.nifi.serialization.record.Record;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+/**
+ * Record lookup service that can look up many coordinates at once, in fewer round trips than single lookups.
+ */
+public interface BatchRecordLookupService extends RecordLookupService {
+
+    /**
+     * Looks up the records of all coordinates, evaluating the configuration with the same context. Results are in the
+     * order of the coordinates.
+     */
+    List<Optional<Record>> lookupAll(List<Map<String, Object>> coordinates, Map<String, String> context) throws LookupFailureException;
+}
@@ -0,0 +1,63 @@
+package pl.touk.nifi.services;
+
+import org.apache.nifi.lookup.LookupFailureException;
+import org.apache.nifi.serialization.record.Record;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+/**
+ * Drives a {@link BatchRecordLookupService} from a stream of records, for processors enriching records one by one.
+ * Records are buffered with their coordinates and looked up a chunk at a time, and passed to the handler with their
+ * lookup results in the order they were added. Call {@link #flush()} after the last record.
+ */
+public class ChunkedRecordLookup {
+
+    public interface ResultHandler {
+        void handle(Record record, Optional<Record> lookupResult) throws IOException;
+    }
+
+    private final BatchRecordLookupService lookupService;
+
+    private final Map<String, String> context;
+
+    private final int chunkSize;
+
+    private final ResultHandler handler;
+
+    private final List<Record> records;
+
+    private final List<Map<String, Object>> coordinates;
+
+    public ChunkedRecordLookup(BatchRecordLookupService lookupService, Map<String, String> context, int chunkSize, ResultHandler handler) {
+        this.lookupService = lookupService;
+        this.context = context;
+        this.chunkSize = chunkSize;
+        this.handler = handler;
+        this.records = new ArrayList<>(chunkSize);
+        this.coordinates = new ArrayList<>(chunkSize);
+    }
+
+    public void add(Record record, Map<String, Object> recordCoordinates) throws LookupFailureException, IOException {
+        records.add(record);
+        coordinates.add(recordCoordinates);
+        if (records.size() >= chunkSize) {
+            flush();
+        }
+    }
+
+    public void flush() throws LookupFailureException, IOException {
+        if (records.isEmpty()) {
+            return;
+        }
+        List<Optional<Record>> results = lookupService.lookupAll(coordinates, context);
+        for (int i = 0; i < records.size(); i++) {
+            handler.handle(records.get(i), results.get(i));
+        }
+        records.clear();
+        coordinates.clear();
+    }
+}
@@ -0,0 +1,38 @@
+package pl.touk.nifi.services;
+
+import org.apache.ignite.client.ClientCache;
+import org.apache.ignite.client.ClientCacheConfiguration;
+import org.apache.ignite.client.IgniteClient;
+import org.apache.nifi.annotation.documentation.CapabilityDescription;
+import org.apache.nifi.annotation.documentation.Tags;
+import org.apache.nifi.controller.ControllerService;
+
+import java.util.List;
+
+@Tags({"ignite", "client", "thin client", "connection"})
+@CapabilityDescription("Provides Ignite thin clients shared by all services using it, so they use the same connections to the cluster.")
+public interface IgniteClientProvider extends ControllerService {
+
+    /**
+     * Returns the pool of shared clients, started when the first service acquires them. A service acquiring the clients
+     * again holds them only once.
+     */
+    List<IgniteClient> acquireClients(String serviceId);
+
+    /**
+     * Returns the clients currently in the pool, which are replaced when the provider reconnects, so they should not
+     * be kept. Throws {@link org.apache.ignite.client.ClientException} while the cluster is unreachable.
+     */
+    List<IgniteClient> getClients();
+
+    /**
+     * Releases the clients held by the service. They are closed once no service holds them.
+     */
+    void releaseClients(String serviceId);
+
+    /**
+     * Returns a handle of the cache for each client of the pool, in the order of the clients. The cache is created
+     * when it does not exist yet, and handles are created once per cache name.
+     */
+    <K, V> List<ClientCache<K, V>> getOrCreateCaches(ClientCacheConfiguration configuration);
+}
@@ -0,0 +1,120 @@
+package pl.touk.nifi.services;
+
+import org.apache.nifi.controller.AbstractControllerService;
+import org.apache.nifi.lookup.LookupFailureException;
+import org.apache.nifi.serialization.SimpleRecordSchema;
+import org.apache.nifi.serialization.record.MapRecord;
+import org.apache.nifi.serialization.record.Record;
+import org.apache.nifi.serialization.record.RecordField;
+import org.apache.nifi.serialization.record.RecordFieldType;
+import org.apache.nifi.serialization.record.RecordSchema;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ChunkedRecordLookupTest {
+
+    private static final RecordSchema SCHEMA = new SimpleRecordSchema(Collections.singletonList(
+            new RecordField("id", RecordFieldType.STRING.getDataType())));
+
+    private final Map<String, String> context = Collections.singletonMap("table", "people");
+
+    @Test
+    public void testRecordsLookedUpInChunks() throws Exception {
+        EvenIdLookupService lookupService = new EvenIdLookupService();
+        List<Record> handled = new ArrayList<>();
+        List<Optional<Record>> results = new ArrayList<>();
+        ChunkedRecordLookup lookup = new ChunkedRecordLookup(lookupService, context, 2, (record, result) -> {
+            handled.add(record);
+            results.add(result);
+        });
+
+        List<Record> records = Arrays.asList(record("0"), record("1"), record("2"), record("3"), record("4"));
+        for (Record record : records) {
+            lookup.add(record, Collections.singletonMap("id", record.getValue("id")));
+        }
+        // The last record waits for the chunk to fill up
+        assertEquals(4, handled.size());
+        lookup.flush();
+        lookup.flush();
+
+        assertEquals(Arrays.asList(2, 2, 1), lookupService.chunkSizes);
+        assertEquals(Collections.singleton(context), lookupService.contexts);
+        assertEquals(records, handled);
+        assertEquals("0", results.get(0).get().getValue("id"));
+        assertFalse(results.get(1).isPresent());
+        assertEquals("4", results.get(4).get().getValue("id"));
+    }
+
+    @Test
+    public void testFlushWithoutRecords() throws Exception {
+        EvenIdLookupService lookupService = new EvenIdLookupService();
+        new ChunkedRecordLookup(lookupService, context, 2, (record, result) -> { }).flush();
+        assertTrue(lookupService.chunkSizes.isEmpty());
+    }
+
+    @Test
+    public void testHandlerFailurePropagated() throws Exception {
+        IOException failure = new IOException("Could not write record");
+        ChunkedRecordLookup lookup = new ChunkedRecordLookup(new EvenIdLookupService(), context, 1, (record, result) -> {
+            throw failure;
+        });
+        try {
+            lookup.add(record("0"), Collections.singletonMap("id", "0"));
+            fail("Handler failure should be propagated");
+        } catch (IOException e) {
+            assertSame(failure, e);
+        }
+    }
+
+    private static Record record(String id) {
+        return new MapRecord(SCHEMA, Collections.singletonMap("id", id));
+    }
+
+    /**
+     * Finds records with even ids, and remembers the chunks it was called with.
+     */
+    private static class EvenIdLookupService extends AbstractControllerService implements BatchRecordLookupService {
+
+        private final List<Integer> chunkSizes = new ArrayList<>();
+
+        private final Set<Map<String, String>> contexts = new HashSet<>();
+
+        @Override
+        public List<Optional<Record>> lookupAll(List<Map<String, Object>> coordinates, Map<String, String> context) {
+            chunkSizes.add(coordinates.size());
+            contexts.add(context);
+            return coordinates.stream().map(this::find).collect(Collectors.toList());
+        }
+
+        @Override
+        public Optional<Record> lookup(Map<String, Object> coordinates) throws LookupFailureException {
+            return find(coordinates);
+        }
+
+        @Override
+        public Set<String> getRequiredKeys() {
+            return Collections.singleton("id");
+        }
+
+        private Optional<Record> find(Map<String, Object> coordinates) {
+            String id = (String) coordinates.get("id");
+            return Integer.parseInt(id) % 2 == 0 ? Optional.of(record(id)) : Optional.empty();
+        }
+    }
+}
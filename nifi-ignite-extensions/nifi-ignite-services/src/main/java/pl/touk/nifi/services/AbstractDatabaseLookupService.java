@@ -56,6 +56,17 @@ public class AbstractDatabaseLookupService extends AbstractControllerService {
             .required(true)
             .build();
 
+    static final PropertyDescriptor MAX_CACHE_MEMORY = new PropertyDescriptor.Builder()
+            .name("dbrecord-lookup-max-cache-memory")
+            .displayName("Max Cache Memory")
+            .description("The maximum estimated heap memory of cached records, eg. 64 MB. When set, the cache is bounded by the memory of its "
+                    + "records, estimated from their field names and values, instead of by the number of records in Cache Size. Use it when "
+                    + "record sizes vary a lot. If the Cache Size is zero then this property is ignored.")
+            .required(false)
+            .addValidator(StandardValidators.DATA_SIZE_VALIDATOR)
+            .expressionLanguageSupported(ExpressionLanguageScope.VARIABLE_REGISTRY)
+            .build();
+
     static final PropertyDescriptor CLEAR_CACHE_ON_ENABLED = new PropertyDescriptor.Builder()
             .name("dbrecord-lookup-clear-cache-on-enabled")
             .displayName("Clear Cache on Enabled")
@@ -75,6 +86,39 @@ public class AbstractDatabaseLookupService extends AbstractControllerService {
             .expressionLanguageSupported(ExpressionLanguageScope.VARIABLE_REGISTRY)
             .build();
 
+    static final PropertyDescriptor CACHE_REFRESH_INTERVAL = new PropertyDescriptor.Builder()
+            .name("dbrecord-lookup-cache-refresh-interval")
+            .displayName("Cache Refresh Interval")
+            .description("Time after which a cache entry is reloaded from the database on its next lookup. The lookup still returns the cached "
+                    + "value while the entry is reloaded in the background, so hot entries do not expire under load. Cache Expiration, when set, "
+                    + "bounds how long a stale entry may still be returned. If the Cache Size is zero then this property is ignored.")
+            .required(false)
+            .addValidator(StandardValidators.TIME_PERIOD_VALIDATOR)
+            .expressionLanguageSupported(ExpressionLanguageScope.VARIABLE_REGISTRY)
+            .build();
+
+    static final PropertyDescriptor NEGATIVE_CACHE_SIZE = new PropertyDescriptor.Builder()
+            .name("dbrecord-lookup-negative-cache-size")
+            .displayName("Negative Cache Size")
+            .description("Specifies how many lookup values not found in the database should be remembered, so they are not queried again until "
+                    + "Negative Cache Expiration. This is separate from the Cache Size of found records. Setting this property to zero means "
+                    + "lookup values not found are queried every time.")
+            .addValidator(StandardValidators.NON_NEGATIVE_INTEGER_VALIDATOR)
+            .defaultValue("0")
+            .required(true)
+            .build();
+
+    static final PropertyDescriptor NEGATIVE_CACHE_EXPIRATION = new PropertyDescriptor.Builder()
+            .name("dbrecord-lookup-negative-cache-expiration")
+            .displayName("Negative Cache Expiration")
+            .description("Time after which a lookup value not found in the database is queried again. Rows added to the table in the meantime "
+                    + "are not returned until then. If the Negative Cache Size is zero then this property is ignored.")
+            .defaultValue("5 mins")
+            .required(true)
+            .addValidator(StandardValidators.TIME_PERIOD_VALIDATOR)
+            .expressionLanguageSupported(ExpressionLanguageScope.VARIABLE_REGISTRY)
+            .build();
+
     protected List<PropertyDescriptor> properties;
 
     DBCPService dbcpService;
@@ -1,13 +1,20 @@
 package pl.touk.nifi.services;
 
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
 import org.apache.ignite.client.ClientCache;
+import org.apache.ignite.client.ClientCacheConfiguration;
+import org.apache.ignite.client.IgniteClient;
 import org.apache.nifi.annotation.lifecycle.OnEnabled;
 import org.apache.nifi.components.PropertyDescriptor;
 import org.apache.nifi.controller.ConfigurationContext;
+import org.apache.nifi.processor.DataUnit;
 import org.apache.nifi.processor.util.StandardValidators;
 import org.apache.nifi.reporting.InitializationException;
 
 import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
@@ -22,15 +29,51 @@ public abstract class AbstractIgniteClientCache<K, V> extends AbstractIgniteThin
             .addValidator(StandardValidators.NON_EMPTY_VALIDATOR)
             .build();
 
+    protected static final PropertyDescriptor NEAR_CACHE_SIZE = new PropertyDescriptor.Builder()
+            .displayName("Near Cache Size")
+            .name("ignite-near-cache-size")
+            .description("Maximum number of entries read from Ignite that are kept by this client, so reads of hot keys do not go "
+                    + "over the network. Zero disables the near cache. Only values are cached, keys not found in Ignite are always "
+                    + "looked up again.")
+            .defaultValue("0")
+            .required(true)
+            .addValidator(StandardValidators.NON_NEGATIVE_INTEGER_VALIDATOR)
+            .build();
+
+    protected static final PropertyDescriptor NEAR_CACHE_MAX_MEMORY = new PropertyDescriptor.Builder()
+            .displayName("Near Cache Max Memory")
+            .name("ignite-near-cache-max-memory")
+            .description("When set, the near cache is bounded by the size of its keys and values instead of the number of entries.")
+            .required(false)
+            .addValidator(StandardValidators.DATA_SIZE_VALIDATOR)
+            .build();
+
+    protected static final PropertyDescriptor NEAR_CACHE_EXPIRATION = new PropertyDescriptor.Builder()
+            .displayName("Near Cache Expiration")
+            .name("ignite-near-cache-expiration")
+            .description("How long entries are kept in the near cache after they are read. Writes made through this client are "
+                    + "visible immediately, writes made by other clients become visible after this time at the latest.")
+            .defaultValue("1 sec")
+            .required(true)
+            .addValidator(StandardValidators.TIME_PERIOD_VALIDATOR)
+            .build();
+
     protected volatile String cacheName;
 
-    private volatile ClientCache<K, V> cache;
+    private volatile CacheHandles<K, V> caches;
+
+    private volatile Cache<Object, V> nearCache;
+
+    private static final int NEAR_STAMP_STRIPES = 64;
+
+    // Incremented on every invalidation of a key of the stripe, so values read while the key was written are not kept
+    private final AtomicLongArray nearStamps = new AtomicLongArray(NEAR_STAMP_STRIPES);
 
     @Override
     protected List<PropertyDescriptor> getSupportedPropertyDescriptors() {
         return Stream.concat(
                 super.getSupportedPropertyDescriptors().stream(),
-                Stream.of(CACHE_NAME).collect(Collectors.toList()).stream()
+                Stream.of(CACHE_NAME, NEAR_CACHE_SIZE, NEAR_CACHE_MAX_MEMORY, NEAR_CACHE_EXPIRATION).collect(Collectors.toList()).stream()
         ).collect(Collectors.toList());
     }
 
@@ -38,15 +81,170 @@ public abstract class AbstractIgniteClientCache<K, V> extends AbstractIgniteThin
     public void onEnabled(final ConfigurationContext context) throws InitializationException {
         super.onEnabled(context);
         initializeIgniteCache(context);
+        initializeNearCache(context);
     }
 
+    /**
+     * Cache of the client used by the calling thread.
+     */
     protected ClientCache<K, V> getCache() {
-        return cache;
+        List<ClientCache<K, V>> handles = getCaches();
+        return handles.get(getClientIndex(handles.size()));
+    }
+
+    /**
+     * Cache of the pooled client with the given index, taken modulo the pool size.
+     */
+    protected ClientCache<K, V> getCache(int clientIndex) {
+        List<ClientCache<K, V>> handles = getCaches();
+        return handles.get(clientIndex % handles.size());
+    }
+
+    private List<ClientCache<K, V>> getCaches() {
+        List<IgniteClient> clients = getIgniteClients();
+        CacheHandles<K, V> handles = caches;
+        if (handles.clients != clients) {
+            handles = refreshCaches(clients);
+        }
+        return handles.caches;
     }
 
     public void initializeIgniteCache(ConfigurationContext context) {
         cacheName = context.getProperty(CACHE_NAME).getValue();
         getLogger().info("Initializing Ignite cache: " +  cacheName + " for " + context.getName());
-        cache = getIgniteClient().getOrCreateCache(cacheName).withKeepBinary();
+        caches = createCaches(getIgniteClients());
+    }
+
+    /**
+     * Handles are re-created after reconnection. The cluster may have been restarted, so near cache entries are dropped.
+     */
+    private synchronized CacheHandles<K, V> refreshCaches(List<IgniteClient> clients) {
+        if (caches.clients != clients) {
+            getLogger().info("Reinitializing Ignite cache " + cacheName + " after reconnection");
+            invalidateNearAll();
+            caches = createCaches(clients);
+        }
+        return caches;
+    }
+
+    private CacheHandles<K, V> createCaches(List<IgniteClient> clients) {
+        return new CacheHandles<>(clients, this.<K, V>getOrCreateCaches(getCacheConfiguration(cacheName)).stream()
+                .map(cache -> cache.<K, V>withKeepBinary())
+                .collect(Collectors.toList()));
+    }
+
+    private void initializeNearCache(ConfigurationContext context) {
+        int nearCacheSize = context.getProperty(NEAR_CACHE_SIZE).asInteger();
+        if (nearCacheSize == 0) {
+            nearCache = null;
+            return;
+        }
+        Caffeine<Object, Object> builder = Caffeine.newBuilder()
+                .expireAfterWrite(context.getProperty(NEAR_CACHE_EXPIRATION).asTimePeriod(TimeUnit.NANOSECONDS), TimeUnit.NANOSECONDS);
+        if (context.getProperty(NEAR_CACHE_MAX_MEMORY).isSet()) {
+            builder.maximumWeight(context.getProperty(NEAR_CACHE_MAX_MEMORY).asDataSize(DataUnit.B).longValue())
+                    .weigher((Object key, V value) -> getNearCacheWeight(key, value));
+        } else {
+            builder.maximumSize(nearCacheSize);
+        }
+        nearCache = builder.build();
+    }
+
+    /**
+     * Value found in the near cache, or null if it is not there or the near cache is disabled.
+     */
+    protected V getNear(K key) {
+        Cache<Object, V> near = nearCache;
+        return near == null ? null : near.getIfPresent(getNearCacheKey(key));
+    }
+
+    /**
+     * Taken before the value of a key is read from Ignite, and passed with the value to
+     * {@link #putNear(Object, Object, long)}.
+     */
+    protected long getNearStamp(K key) {
+        return nearStamps.get(getNearStripe(getNearCacheKey(key)));
+    }
+
+    /**
+     * Keeps a value read from Ignite, unless the key, or another key of its stripe, was invalidated since the stamp was
+     * taken, as the value may then be older than a write that completed during the read. Null values are not kept.
+     */
+    protected void putNear(K key, V value, long stamp) {
+        Cache<Object, V> near = nearCache;
+        if (near == null || value == null) {
+            return;
+        }
+        Object nearKey = getNearCacheKey(key);
+        int stripe = getNearStripe(nearKey);
+        if (nearStamps.get(stripe) == stamp) {
+            near.put(nearKey, value);
+            // An invalidation between the check and the put has to win
+            if (nearStamps.get(stripe) != stamp) {
+                near.invalidate(nearKey);
+            }
+        }
+    }
+
+    /**
+     * Drops the value of a key written or removed through this client. Called after the write completes, so reads
+     * made in the meantime cannot keep the previous value.
+     */
+    protected void invalidateNear(K key) {
+        Cache<Object, V> near = nearCache;
+        if (near != null) {
+            Object nearKey = getNearCacheKey(key);
+            nearStamps.incrementAndGet(getNearStripe(nearKey));
+            near.invalidate(nearKey);
+        }
+    }
+
+    protected void invalidateNearAll() {
+        Cache<Object, V> near = nearCache;
+        if (near != null) {
+            for (int i = 0; i < NEAR_STAMP_STRIPES; i++) {
+                nearStamps.incrementAndGet(i);
+            }
+            near.invalidateAll();
+        }
+    }
+
+    private static int getNearStripe(Object nearKey) {
+        int hash = nearKey.hashCode();
+        return (hash ^ (hash >>> 16)) & (NEAR_STAMP_STRIPES - 1);
+    }
+
+    /**
+     * Key the near cache maps values by, which has to implement equals and hashCode by content.
+     */
+    protected Object getNearCacheKey(K key) {
+        return key;
+    }
+
+    /**
+     * Weight of a near cache entry, used when the near cache is bounded by memory.
+     */
+    protected int getNearCacheWeight(Object nearCacheKey, V value) {
+        return 1;
+    }
+
+    /**
+     * Configuration the cache is created with, when it does not exist yet.
+     */
+    protected ClientCacheConfiguration getCacheConfiguration(String cacheName) {
+        return new ClientCacheConfiguration().setName(cacheName);
+    }
+
+    /**
+     * Cache handles, one per pooled client, with the clients they were created from.
+     */
+    private static class CacheHandles<K, V> {
+        private final List<IgniteClient> clients;
+        private final List<ClientCache<K, V>> caches;
+
+        CacheHandles(List<IgniteClient> clients, List<ClientCache<K, V>> caches) {
+            this.clients = clients;
+            this.caches = caches;
+        }
     }
-}
+}
\ No newline at end of file
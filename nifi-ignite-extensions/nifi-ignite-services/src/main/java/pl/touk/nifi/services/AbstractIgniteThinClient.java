@@ -1,32 +1,51 @@
 package pl.touk.nifi.services;
 
 import org.apache.ignite.Ignition;
+import org.apache.ignite.client.ClientCache;
+import org.apache.ignite.client.ClientCacheConfiguration;
 import org.apache.ignite.client.ClientException;
 import org.apache.ignite.client.IgniteClient;
 import org.apache.ignite.configuration.ClientConfiguration;
 import org.apache.nifi.annotation.lifecycle.OnDisabled;
 import org.apache.nifi.annotation.lifecycle.OnEnabled;
 import org.apache.nifi.components.PropertyDescriptor;
+import org.apache.nifi.components.ValidationContext;
+import org.apache.nifi.components.ValidationResult;
 import org.apache.nifi.controller.AbstractControllerService;
 import org.apache.nifi.controller.ConfigurationContext;
 import org.apache.nifi.controller.ControllerServiceInitializationContext;
 import org.apache.nifi.expression.ExpressionLanguageScope;
+import org.apache.nifi.processor.DataUnit;
 import org.apache.nifi.processor.util.StandardValidators;
 import org.apache.nifi.reporting.InitializationException;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
 public abstract class AbstractIgniteThinClient extends AbstractControllerService {
 
+    public static final PropertyDescriptor CLIENT_PROVIDER = new PropertyDescriptor.Builder()
+            .name("ignite-client-provider")
+            .displayName("Ignite client provider")
+            .description("Provider of thin clients shared with other services. When set, this service does not start its own clients "
+                    + "and the remaining connection properties are ignored.")
+            .identifiesControllerService(IgniteClientProvider.class)
+            .required(false)
+            .build();
+
     public static final PropertyDescriptor SERVER_ADDRESSES = new PropertyDescriptor.Builder()
             .name("ignite-addresses")
             .displayName("Ignite addresses")
-            .description("Comma-separated list of Ignite host addresses for thin client, eg. host1:10800,host2:10800")
+            .description("Comma-separated list of Ignite host addresses for thin client, eg. host1:10800,host2:10800. "
+                    + "Required unless Ignite client provider is set.")
             .addValidator(StandardValidators.createListValidator(true, true, StandardValidators.NON_EMPTY_VALIDATOR))
             .expressionLanguageSupported(ExpressionLanguageScope.VARIABLE_REGISTRY)
-            .required(true)
+            .required(false)
             .build();
 
     public static final PropertyDescriptor USERNAME = new PropertyDescriptor.Builder()
@@ -46,11 +65,112 @@ public abstract class AbstractIgniteThinClient extends AbstractControllerService
             .sensitive(true)
             .build();
 
-    private transient IgniteClient igniteClient;
-    
+    public static final PropertyDescriptor PARTITION_AWARENESS = new PropertyDescriptor.Builder()
+            .name("ignite-partition-awareness")
+            .displayName("Partition awareness")
+            .description("Whether the client connects to all given addresses and sends key operations directly to the node owning "
+                    + "the key, instead of through one node. All server nodes should be listed in Ignite addresses.")
+            .defaultValue("false")
+            .allowableValues("true", "false")
+            .required(true)
+            .build();
+
+    public static final PropertyDescriptor CLIENT_POOL_SIZE = new PropertyDescriptor.Builder()
+            .name("ignite-client-pool-size")
+            .displayName("Client pool size")
+            .description("Number of thin clients, each with its own connections, that calling threads are spread across. "
+                    + "Batched calls are sent by one thread per client.")
+            .defaultValue("1")
+            .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+            .required(true)
+            .build();
+
+    public static final PropertyDescriptor TIMEOUT = new PropertyDescriptor.Builder()
+            .name("ignite-timeout")
+            .displayName("Timeout")
+            .description("Socket timeout of requests to Ignite. Zero means no timeout.")
+            .defaultValue("0 secs")
+            .addValidator(StandardValidators.TIME_PERIOD_VALIDATOR)
+            .required(true)
+            .build();
+
+    public static final PropertyDescriptor TCP_NO_DELAY = new PropertyDescriptor.Builder()
+            .name("ignite-tcp-no-delay")
+            .displayName("TCP no delay")
+            .description("Whether small requests are sent immediately, with Nagle's algorithm disabled.")
+            .defaultValue("true")
+            .allowableValues("true", "false")
+            .required(true)
+            .build();
+
+    public static final PropertyDescriptor SEND_BUFFER_SIZE = new PropertyDescriptor.Builder()
+            .name("ignite-send-buffer-size")
+            .displayName("Socket send buffer size")
+            .description("Size of the socket send buffer of each connection. Zero means the operating system default.")
+            .defaultValue("32 KB")
+            .addValidator(StandardValidators.DATA_SIZE_VALIDATOR)
+            .required(true)
+            .build();
+
+    public static final PropertyDescriptor RECEIVE_BUFFER_SIZE = new PropertyDescriptor.Builder()
+            .name("ignite-receive-buffer-size")
+            .displayName("Socket receive buffer size")
+            .description("Size of the socket receive buffer of each connection. Zero means the operating system default.")
+            .defaultValue("32 KB")
+            .addValidator(StandardValidators.DATA_SIZE_VALIDATOR)
+            .required(true)
+            .build();
+
+    public static final PropertyDescriptor HEALTH_CHECK_INTERVAL = new PropertyDescriptor.Builder()
+            .name("ignite-health-check-interval")
+            .displayName("Health check interval")
+            .description("How often the connection to the cluster is probed. When a probe fails, calls fail immediately while the "
+                    + "clients are re-created. Set Timeout, so probes of hung connections fail too. Zero disables health checks.")
+            .defaultValue("10 secs")
+            .addValidator(StandardValidators.TIME_PERIOD_VALIDATOR)
+            .required(true)
+            .build();
+
+    public static final PropertyDescriptor RECONNECT_INITIAL_BACKOFF = new PropertyDescriptor.Builder()
+            .name("ignite-reconnect-initial-backoff")
+            .displayName("Reconnect initial backoff")
+            .description("Time between the first failed reconnection attempt and the next one. It doubles after every failed attempt.")
+            .defaultValue("1 sec")
+            .addValidator(StandardValidators.TIME_PERIOD_VALIDATOR)
+            .required(true)
+            .build();
+
+    public static final PropertyDescriptor RECONNECT_MAX_BACKOFF = new PropertyDescriptor.Builder()
+            .name("ignite-reconnect-max-backoff")
+            .displayName("Reconnect max backoff")
+            .description("Maximum time between reconnection attempts.")
+            .defaultValue("1 min")
+            .addValidator(StandardValidators.TIME_PERIOD_VALIDATOR)
+            .required(true)
+            .build();
+
+    private transient volatile List<IgniteClient> igniteClients;
+
+    private transient volatile IgniteClientProvider clientProvider;
+
+    private transient volatile ClientHealthMonitor healthMonitor;
+
     @Override
     protected List<PropertyDescriptor> getSupportedPropertyDescriptors() {
-        return Stream.of(SERVER_ADDRESSES, USERNAME, PASSWORD).collect(Collectors.toList());
+        return Stream.of(CLIENT_PROVIDER, SERVER_ADDRESSES, USERNAME, PASSWORD, PARTITION_AWARENESS, CLIENT_POOL_SIZE, TIMEOUT, TCP_NO_DELAY,
+                SEND_BUFFER_SIZE, RECEIVE_BUFFER_SIZE, HEALTH_CHECK_INTERVAL, RECONNECT_INITIAL_BACKOFF, RECONNECT_MAX_BACKOFF).collect(Collectors.toList());
+    }
+
+    @Override
+    protected Collection<ValidationResult> customValidate(ValidationContext context) {
+        if (!context.getProperty(SERVER_ADDRESSES).isSet() && !context.getProperty(CLIENT_PROVIDER).isSet()) {
+            return Collections.singletonList(new ValidationResult.Builder()
+                    .subject(SERVER_ADDRESSES.getDisplayName())
+                    .valid(false)
+                    .explanation("either Ignite addresses or Ignite client provider must be set")
+                    .build());
+        }
+        return Collections.emptyList();
     }
 
     @Override
@@ -68,37 +188,161 @@ public abstract class AbstractIgniteThinClient extends AbstractControllerService
        closeIgniteClient();
     }
 
+    /**
+     * Client of the calling thread. A thread always gets the same client, so a transaction it starts covers its
+     * cache operations.
+     */
     protected IgniteClient getIgniteClient() {
-        return igniteClient;
+        List<IgniteClient> clients = getIgniteClients();
+        return clients == null ? null : clients.get(getClientIndex(clients.size()));
+    }
+
+    /**
+     * Current clients, which are replaced when the service reconnects, so they should not be kept. Throws while the
+     * cluster is unreachable, instead of letting calls wait for connection timeouts.
+     */
+    protected List<IgniteClient> getIgniteClients() throws ClientException {
+        IgniteClientProvider provider = clientProvider;
+        if (provider != null) {
+            return provider.getClients();
+        }
+        ClientHealthMonitor monitor = healthMonitor;
+        if (monitor != null && !monitor.isAvailable()) {
+            throw new ClientException("Ignite cluster is unreachable, reconnecting");
+        }
+        return igniteClients;
+    }
+
+    /**
+     * Index of the client used by the calling thread.
+     */
+    protected static int getClientIndex(int poolSize) {
+        return (int) (Thread.currentThread().getId() % poolSize);
+    }
+
+    protected boolean isClientStarted() {
+        return igniteClients != null || clientProvider != null;
     }
 
     protected void initAndStartClient(ConfigurationContext context) throws ClientException {
-        if (igniteClient != null) {
+        if (isClientStarted()) {
             getLogger().info("Ignite already initialized");
             return;
         }
+        if (context.getProperty(CLIENT_PROVIDER).isSet()) {
+            IgniteClientProvider provider = context.getProperty(CLIENT_PROVIDER).asControllerService(IgniteClientProvider.class);
+            getLogger().info("Using shared Ignite thin clients of " + provider.getIdentifier() + " for " + context.getName());
+            provider.acquireClients(getIdentifier());
+            clientProvider = provider;
+            return;
+        }
+        getLogger().info("Initializing Ignite thin client for " + context.getName());
+        ClientConfiguration cfg = createClientConfiguration(context);
+        int poolSize = context.getProperty(CLIENT_POOL_SIZE).asInteger();
+        igniteClients = startClients(cfg, poolSize);
+        long healthCheckInterval = context.getProperty(HEALTH_CHECK_INTERVAL).asTimePeriod(TimeUnit.MILLISECONDS);
+        if (healthCheckInterval > 0) {
+            healthMonitor = new ClientHealthMonitor("Ignite health monitor for " + context.getName(),
+                    this::probe, () -> reconnect(cfg, poolSize), healthCheckInterval,
+                    context.getProperty(RECONNECT_INITIAL_BACKOFF).asTimePeriod(TimeUnit.MILLISECONDS),
+                    context.getProperty(RECONNECT_MAX_BACKOFF).asTimePeriod(TimeUnit.MILLISECONDS),
+                    getLogger());
+        }
+    }
+
+    protected ClientConfiguration createClientConfiguration(ConfigurationContext context) {
         String[] hostAddresses = context.getProperty(SERVER_ADDRESSES).getValue().split(",");
         String username = context.getProperty(USERNAME).getValue();
-        String password = context.getProperty(USERNAME).getValue();
-        synchronized (Ignition.class) {
-            ClientConfiguration cfg = new ClientConfiguration().setAddresses(hostAddresses);
-            if (username != null) {
-                cfg.setUserName(username);
-            }
-            if (password != null) {
-                cfg.setUserPassword(password);
-            }
+        String password = context.getProperty(PASSWORD).getValue();
+        ClientConfiguration cfg = new ClientConfiguration().setAddresses(hostAddresses)
+                .setPartitionAwarenessEnabled(context.getProperty(PARTITION_AWARENESS).asBoolean())
+                .setTimeout(context.getProperty(TIMEOUT).asTimePeriod(TimeUnit.MILLISECONDS).intValue())
+                .setTcpNoDelay(context.getProperty(TCP_NO_DELAY).asBoolean())
+                .setSendBufferSize(context.getProperty(SEND_BUFFER_SIZE).asDataSize(DataUnit.B).intValue())
+                .setReceiveBufferSize(context.getProperty(RECEIVE_BUFFER_SIZE).asDataSize(DataUnit.B).intValue());
+        if (username != null) {
+            cfg.setUserName(username);
+        }
+        if (password != null) {
+            cfg.setUserPassword(password);
+        }
+        return cfg;
+    }
 
-            getLogger().info("Initializing Ignite thin client for " + context.getName());
-            igniteClient = Ignition.startClient(cfg);
+    /**
+     * Returns a handle of the cache for each client, creating the cache when it does not exist yet.
+     */
+    protected <K, V> List<ClientCache<K, V>> getOrCreateCaches(ClientCacheConfiguration configuration) {
+        IgniteClientProvider provider = clientProvider;
+        if (provider != null) {
+            return provider.getOrCreateCaches(configuration);
         }
+        return createCaches(igniteClients, configuration);
     }
 
-    protected void closeIgniteClient() throws Exception {
-        if (igniteClient != null) {
+    protected static <K, V> List<ClientCache<K, V>> createCaches(List<IgniteClient> clients, ClientCacheConfiguration configuration) {
+        List<ClientCache<K, V>> caches = new ArrayList<>(clients.size());
+        caches.add(clients.get(0).getOrCreateCache(configuration));
+        for (IgniteClient client : clients.subList(1, clients.size())) {
+            caches.add(client.cache(configuration.getName()));
+        }
+        return caches;
+    }
+
+    protected void closeIgniteClient() {
+        IgniteClientProvider provider = clientProvider;
+        if (provider != null) {
+            getLogger().info("Releasing shared ignite client");
+            provider.releaseClients(getIdentifier());
+            clientProvider = null;
+            return;
+        }
+        if (healthMonitor != null) {
+            healthMonitor.close();
+            healthMonitor = null;
+        }
+        if (igniteClients != null) {
             getLogger().info("Closing ignite client");
-            igniteClient.close();
-            igniteClient = null;
+            closeAll(igniteClients);
+            igniteClients = null;
+        }
+    }
+
+    /**
+     * Unlike thick clients, thin clients can be started concurrently, so enabling services is not serialized.
+     */
+    private List<IgniteClient> startClients(ClientConfiguration cfg, int poolSize) throws ClientException {
+        List<IgniteClient> clients = new ArrayList<>(poolSize);
+        try {
+            for (int i = 0; i < poolSize; i++) {
+                clients.add(Ignition.startClient(cfg));
+            }
+        } catch (ClientException e) {
+            closeAll(clients);
+            throw e;
+        }
+        return clients;
+    }
+
+    private void probe() {
+        for (IgniteClient client : igniteClients) {
+            client.cacheNames();
+        }
+    }
+
+    private void reconnect(ClientConfiguration cfg, int poolSize) {
+        List<IgniteClient> previous = igniteClients;
+        igniteClients = startClients(cfg, poolSize);
+        closeAll(previous);
+    }
+
+    private void closeAll(List<IgniteClient> clients) {
+        for (IgniteClient client : clients) {
+            try {
+                client.close();
+            } catch (Exception e) {
+                getLogger().warn("Failed to close Ignite client", e);
+            }
         }
     }
 }
\ No newline at end of file
@@ -0,0 +1,100 @@
+package pl.touk.nifi.services;
+
+import org.apache.nifi.logging.ComponentLog;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Probes the connection to the cluster from a dedicated thread. When a probe fails the circuit is opened, so calls fail
+ * fast instead of waiting for connection timeouts, and reconnection is attempted with exponential backoff until it
+ * succeeds and the circuit is closed again.
+ */
+class ClientHealthMonitor implements AutoCloseable {
+
+    interface Action {
+        void run() throws Exception;
+    }
+
+    private final Action probe;
+
+    private final Action reconnect;
+
+    private final long intervalMillis;
+
+    private final long initialBackoffMillis;
+
+    private final long maxBackoffMillis;
+
+    private final ComponentLog logger;
+
+    private final ScheduledExecutorService executor;
+
+    private volatile boolean open;
+
+    private long backoffMillis;
+
+    ClientHealthMonitor(String name, Action probe, Action reconnect, long intervalMillis, long initialBackoffMillis,
+                        long maxBackoffMillis, ComponentLog logger) {
+        this.probe = probe;
+        this.reconnect = reconnect;
+        this.intervalMillis = intervalMillis;
+        this.initialBackoffMillis = initialBackoffMillis;
+        this.maxBackoffMillis = Math.max(initialBackoffMillis, maxBackoffMillis);
+        this.logger = logger;
+        this.executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, name);
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.executor.schedule(this::check, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Whether the last probe or reconnection succeeded.
+     */
+    boolean isAvailable() {
+        return !open;
+    }
+
+    @Override
+    public void close() {
+        executor.shutdownNow();
+        try {
+            executor.awaitTermination(intervalMillis + maxBackoffMillis, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void check() {
+        if (!open) {
+            try {
+                probe.run();
+                schedule(intervalMillis);
+                return;
+            } catch (Exception e) {
+                logger.warn("Ignite cluster is unreachable, reconnecting", e);
+                open = true;
+                backoffMillis = initialBackoffMillis;
+            }
+        }
+        try {
+            reconnect.run();
+            open = false;
+            logger.info("Reconnected to Ignite cluster");
+            schedule(intervalMillis);
+        } catch (Exception e) {
+            logger.warn("Failed to reconnect to Ignite cluster, retrying in " + backoffMillis + " ms: " + e.getMessage());
+            schedule(backoffMillis);
+            backoffMillis = Math.min(2 * backoffMillis, maxBackoffMillis);
+        }
+    }
+
+    private void schedule(long delayMillis) {
+        if (!executor.isShutdown()) {
+            executor.schedule(this::check, delayMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+}
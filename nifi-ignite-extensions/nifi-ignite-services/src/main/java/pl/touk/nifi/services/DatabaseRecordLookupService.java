@@ -1,20 +1,33 @@
 package pl.touk.nifi.services;
 
 import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.CacheLoader;
 import com.github.benmanes.caffeine.cache.Caffeine;
 import com.github.benmanes.caffeine.cache.Expiry;
+import com.github.benmanes.caffeine.cache.LoadingCache;
+import com.github.benmanes.caffeine.cache.Ticker;
+import com.github.benmanes.caffeine.cache.stats.CacheStats;
 import org.apache.nifi.annotation.documentation.CapabilityDescription;
 import org.apache.nifi.annotation.documentation.Tags;
+import org.apache.nifi.annotation.lifecycle.OnDisabled;
 import org.apache.nifi.annotation.lifecycle.OnEnabled;
 import org.apache.nifi.components.PropertyDescriptor;
+import org.apache.nifi.context.PropertyContext;
+import org.apache.nifi.components.ValidationContext;
+import org.apache.nifi.components.ValidationResult;
 import org.apache.nifi.controller.ConfigurationContext;
 import org.apache.nifi.controller.ControllerServiceInitializationContext;
 import org.apache.nifi.dbcp.DBCPService;
 import org.apache.nifi.expression.ExpressionLanguageScope;
 import org.apache.nifi.lookup.LookupFailureException;
-import org.apache.nifi.lookup.RecordLookupService;
+import org.apache.nifi.processor.DataUnit;
 import org.apache.nifi.processor.util.StandardValidators;
+import org.apache.nifi.reporting.InitializationException;
+import org.apache.nifi.serialization.SimpleRecordSchema;
+import org.apache.nifi.serialization.record.MapRecord;
 import org.apache.nifi.serialization.record.Record;
+import org.apache.nifi.serialization.record.RecordField;
+import org.apache.nifi.serialization.record.RecordSchema;
 import org.apache.nifi.serialization.record.ResultSetRecordSet;
 import pl.touk.nifi.services.lookup.sql.LookupSqlArgument;
 import pl.touk.nifi.services.lookup.sql.LookupSqlQuery;
@@ -22,7 +35,14 @@ import pl.touk.nifi.services.lookup.sql.LookupSqlQuery;
 import java.io.IOException;
 import java.sql.*;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
@@ -30,14 +50,39 @@ import java.util.stream.Stream;
 @CapabilityDescription("A relational-database-based lookup service. When the lookup record is found in the database, "
         + "the specified columns (or all if Lookup Value Columns are not specified) are returned as a Record. Only one row "
         + "will be returned for each lookup, duplicate database entries are ignored.")
-public class DatabaseRecordLookupService extends AbstractDatabaseLookupService implements RecordLookupService {
+public class DatabaseRecordLookupService extends AbstractDatabaseLookupService implements BatchRecordLookupService {
 
-    private volatile Cache<LookupSqlQuery, Record> cache;
+    private volatile LoadingCache<LookupSqlQuery, Record> cache;
+
+    // Settings the cache was built with
+    private List<Long> cacheSettings;
+
+    private volatile Cache<LookupSqlQuery, Boolean> negativeCache;
+
+    private List<Long> negativeCacheSettings;
+
+    // Time source of the caches, replaced by tests
+    Ticker ticker = Ticker.systemTicker();
+
+    private volatile ExecutorService refreshExecutor;
+
+    private volatile Map<List<String>, Record> preloadedRecords;
+
+    private volatile ScheduledExecutorService preloadExecutor;
+
+    private final Object preloadLock = new Object();
+
+    private final LongAdder queryCount = new LongAdder();
+
+    private volatile int batchSize;
 
     protected static final String ARG_PREFIX = "arg";
 
     protected static final String ARGS_PATTERN = "^arg[0-9]+$";
 
+    // Attribute DBCPConnectionPoolLookup selects the connection pool by, the only one of the lookup context kept for queries
+    static final String DATABASE_NAME_ATTRIBUTE = "database.name";
+
     static final Set<String> REQUIRED_KEYS = Collections.emptySet();
 
     static final PropertyDescriptor DBCP_SERVICE = new PropertyDescriptor.Builder()
@@ -69,12 +114,55 @@ public class DatabaseRecordLookupService extends AbstractDatabaseLookupService i
     protected static final PropertyDescriptor WHERE_CLAUSE = new PropertyDescriptor.Builder()
             .name("where-clause")
             .displayName("Where")
-            .description("Where clause, eg. age > ?")
-            .required(true)
+            .description("Where clause, eg. age > ?. Required unless Preload Key Columns are set. When the lookup finds many rows, "
+                    + "the first one is returned, so the clause may end with ORDER BY to choose it. Such clauses are not batched.")
+            .required(false)
             .addValidator(StandardValidators.NON_EMPTY_VALIDATOR)
             .expressionLanguageSupported(ExpressionLanguageScope.FLOWFILE_ATTRIBUTES)
             .build();
 
+    static final PropertyDescriptor LOOKUP_BATCH_SIZE = new PropertyDescriptor.Builder()
+            .name("dbrecord-lookup-batch-size")
+            .displayName("Lookup Batch Size")
+            .description("The maximum number of coordinates looked up in one query by batch lookups. When Lookup Value Columns are "
+                    + "not specified, batch queries select all columns as <table name>.*. Where clauses with ORDER BY, GROUP BY, "
+                    + "HAVING, FETCH, LIMIT, OFFSET or set operations are not batched, and their coordinates are looked up one by one.")
+            .defaultValue("100")
+            .required(true)
+            .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+            .build();
+
+    static final PropertyDescriptor PRELOAD_KEY_COLUMNS = new PropertyDescriptor.Builder()
+            .name("dbrecord-lookup-preload-key-columns")
+            .displayName("Preload Key Columns")
+            .description("A comma-delimited list of columns matched against arg1, arg2, ... of the lookup coordinates, compared as strings. "
+                    + "When set, the whole table is loaded into memory when the service is enabled and every Preload Interval, and lookups "
+                    + "are answered from memory without querying the database. The Where clause and the caches are not used then. Table Name "
+                    + "and Lookup Value Columns are evaluated without flow file attributes.")
+            .required(false)
+            .addValidator(StandardValidators.NON_EMPTY_VALIDATOR)
+            .expressionLanguageSupported(ExpressionLanguageScope.VARIABLE_REGISTRY)
+            .build();
+
+    static final PropertyDescriptor PRELOAD_INTERVAL = new PropertyDescriptor.Builder()
+            .name("dbrecord-lookup-preload-interval")
+            .displayName("Preload Interval")
+            .description("How often the table is loaded again when Preload Key Columns are set. Lookups use the previously loaded table until "
+                    + "loading completes. When not set, the table is loaded only when the service is enabled.")
+            .required(false)
+            .addValidator(StandardValidators.TIME_PERIOD_VALIDATOR)
+            .expressionLanguageSupported(ExpressionLanguageScope.VARIABLE_REGISTRY)
+            .build();
+
+    static final PropertyDescriptor PRELOAD_FETCH_SIZE = new PropertyDescriptor.Builder()
+            .name("dbrecord-lookup-preload-fetch-size")
+            .displayName("Preload Fetch Size")
+            .description("The number of rows fetched from the database at a time when loading the table.")
+            .defaultValue("1000")
+            .required(true)
+            .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+            .build();
+
     protected List<PropertyDescriptor> properties;
 
     @Override
@@ -90,21 +178,66 @@ public class DatabaseRecordLookupService extends AbstractDatabaseLookupService i
         properties.add(LOOKUP_VALUE_COLUMNS);
         properties.add(WHERE_CLAUSE);
         properties.add(CACHE_SIZE);
+        properties.add(MAX_CACHE_MEMORY);
         properties.add(CLEAR_CACHE_ON_ENABLED);
         properties.add(CACHE_EXPIRATION);
+        properties.add(CACHE_REFRESH_INTERVAL);
+        properties.add(NEGATIVE_CACHE_SIZE);
+        properties.add(NEGATIVE_CACHE_EXPIRATION);
+        properties.add(LOOKUP_BATCH_SIZE);
+        properties.add(PRELOAD_KEY_COLUMNS);
+        properties.add(PRELOAD_INTERVAL);
+        properties.add(PRELOAD_FETCH_SIZE);
         this.properties = Collections.unmodifiableList(properties);
     }
 
+    @Override
+    protected Collection<ValidationResult> customValidate(ValidationContext context) {
+        if (!context.getProperty(WHERE_CLAUSE).isSet() && !context.getProperty(PRELOAD_KEY_COLUMNS).isSet()) {
+            return Collections.singletonList(new ValidationResult.Builder()
+                    .subject(WHERE_CLAUSE.getDisplayName())
+                    .valid(false)
+                    .explanation("either Where clause or Preload Key Columns must be set")
+                    .build());
+        }
+        return Collections.emptyList();
+    }
+
     @OnEnabled
-    public void onEnabled(final ConfigurationContext context) {
+    public void onEnabled(final ConfigurationContext context) throws InitializationException {
         dbcpService = context.getProperty(DBCP_SERVICE).asControllerService(DBCPService.class);
         int cacheSize = context.getProperty(CACHE_SIZE).evaluateAttributeExpressions().asInteger();
         boolean clearCache = context.getProperty(CLEAR_CACHE_ON_ENABLED).asBoolean();
         long durationNanos = context.getProperty(CACHE_EXPIRATION).isSet() ? context.getProperty(CACHE_EXPIRATION).evaluateAttributeExpressions().asTimePeriod(TimeUnit.NANOSECONDS) : 0L;
-        if (this.cache == null || (cacheSize > 0 && clearCache)) {
+        long refreshNanos = context.getProperty(CACHE_REFRESH_INTERVAL).isSet() ? context.getProperty(CACHE_REFRESH_INTERVAL).evaluateAttributeExpressions().asTimePeriod(TimeUnit.NANOSECONDS) : 0L;
+        if (refreshNanos > 0) {
+            String threadName = "DatabaseRecordLookupService-refresh-" + getIdentifier();
+            refreshExecutor = Executors.newSingleThreadExecutor(runnable -> {
+                Thread thread = new Thread(runnable, threadName);
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        long maxCacheMemory = cacheSize > 0 && context.getProperty(MAX_CACHE_MEMORY).isSet()
+                ? context.getProperty(MAX_CACHE_MEMORY).evaluateAttributeExpressions().asDataSize(DataUnit.B).longValue() : 0L;
+        // A kept cache would ignore changed settings
+        List<Long> cacheSettings = Arrays.asList((long) cacheSize, maxCacheMemory, durationNanos, refreshNanos);
+        if (this.cache == null || (cacheSize > 0 && clearCache) || !cacheSettings.equals(this.cacheSettings)) {
+            this.cacheSettings = cacheSettings;
+            Caffeine<Object, Object> builder = Caffeine.newBuilder()
+                    .ticker(ticker)
+                    .recordStats();
+            if (maxCacheMemory > 0) {
+                builder.maximumWeight(maxCacheMemory)
+                        .weigher(new RecordWeigher());
+            } else {
+                builder.maximumSize(cacheSize);
+            }
+            if (refreshNanos > 0) {
+                builder.refreshAfterWrite(refreshNanos, TimeUnit.NANOSECONDS);
+            }
             if (durationNanos > 0) {
-                this.cache = Caffeine.newBuilder()
-                        .maximumSize(cacheSize)
+                this.cache = builder
                         .expireAfter(new Expiry<LookupSqlQuery, Record>() {
                             @Override
                             public long expireAfterCreate(LookupSqlQuery query, Record record, long currentTime) {
@@ -113,7 +246,7 @@ public class DatabaseRecordLookupService extends AbstractDatabaseLookupService i
 
                             @Override
                             public long expireAfterUpdate(LookupSqlQuery query, Record record, long currentTime, long currentDuration) {
-                                return currentDuration;
+                                return refreshNanos > 0 ? durationNanos : currentDuration;
                             }
 
                             @Override
@@ -121,14 +254,126 @@ public class DatabaseRecordLookupService extends AbstractDatabaseLookupService i
                                 return currentDuration;
                             }
                         })
-                        .build();
+                        .build(new RecordLoader());
             } else {
-                this.cache = Caffeine.newBuilder()
-                        .maximumSize(cacheSize)
-                        .build();
+                this.cache = builder.build(new RecordLoader());
+            }
+        }
+        int negativeCacheSize = context.getProperty(NEGATIVE_CACHE_SIZE).asInteger();
+        long negativeExpirationNanos = context.getProperty(NEGATIVE_CACHE_EXPIRATION).evaluateAttributeExpressions().asTimePeriod(TimeUnit.NANOSECONDS);
+        List<Long> negativeCacheSettings = Arrays.asList((long) negativeCacheSize, negativeExpirationNanos);
+        if (negativeCacheSize == 0) {
+            this.negativeCache = null;
+        } else if (this.negativeCache == null || clearCache || !negativeCacheSettings.equals(this.negativeCacheSettings)) {
+            this.negativeCacheSettings = negativeCacheSettings;
+            this.negativeCache = Caffeine.newBuilder()
+                    .ticker(ticker)
+                    .maximumSize(negativeCacheSize)
+                    .expireAfterWrite(negativeExpirationNanos, TimeUnit.NANOSECONDS)
+                    .recordStats()
+                    .build();
+        }
+        batchSize = context.getProperty(LOOKUP_BATCH_SIZE).asInteger();
+        queryCount.reset();
+        if (context.getProperty(PRELOAD_KEY_COLUMNS).isSet()) {
+            startPreload(context);
+        }
+    }
+
+    private void startPreload(ConfigurationContext context) throws InitializationException {
+        List<String> keyColumns = Arrays.stream(context.getProperty(PRELOAD_KEY_COLUMNS).evaluateAttributeExpressions().getValue().split(","))
+                .filter(DatabaseRecordLookupService::isNotBlank)
+                .map(String::trim)
+                .collect(Collectors.toList());
+        int fetchSize = context.getProperty(PRELOAD_FETCH_SIZE).asInteger();
+        LookupSqlQuery query = createQuery(context, null);
+        try {
+            preloadedRecords = preload(query, keyColumns, fetchSize);
+        } catch (SQLException | IOException e) {
+            throw new InitializationException("Failed to load table " + context.getProperty(TABLE_NAME).evaluateAttributeExpressions().getValue(), e);
+        }
+        long intervalMillis = context.getProperty(PRELOAD_INTERVAL).isSet() ? context.getProperty(PRELOAD_INTERVAL).evaluateAttributeExpressions().asTimePeriod(TimeUnit.MILLISECONDS) : 0L;
+        if (intervalMillis > 0) {
+            String threadName = "DatabaseRecordLookupService-preload-" + getIdentifier();
+            ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, threadName);
+                thread.setDaemon(true);
+                return thread;
+            });
+            preloadExecutor = executor;
+            executor.scheduleWithFixedDelay(() -> {
+                try {
+                    Map<List<String>, Record> records = preload(query, keyColumns, fetchSize);
+                    // JDBC ignores the interrupt of shutdownNow, so a reload may finish after the service was disabled
+                    synchronized (preloadLock) {
+                        if (preloadExecutor == executor) {
+                            preloadedRecords = records;
+                        }
+                    }
+                } catch (Exception e) {
+                    getLogger().warn("Failed to reload table, lookups use the previously loaded rows", e);
+                }
+            }, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Reads the whole table into an index of the first row of each key, with the key columns stripped.
+     */
+    private Map<List<String>, Record> preload(LookupSqlQuery query, List<String> keyColumns, int fetchSize) throws SQLException, IOException {
+        Map<List<String>, Record> records = new HashMap<>();
+        try (Connection conn = dbcpService.getConnection();
+             PreparedStatement statement = query.toPreloadStatement(conn, keyColumns, fetchSize);
+             ResultSet resultSet = statement.executeQuery()) {
+            queryCount.increment();
+            ResultSetRecordSet resultSetRecordSet = new ResultSetRecordSet(resultSet, null);
+            List<RecordField> fields = resultSetRecordSet.getSchema().getFields();
+            List<String> keyFields = fields.subList(0, keyColumns.size()).stream().map(RecordField::getFieldName).collect(Collectors.toList());
+            RecordSchema schema = new SimpleRecordSchema(fields.subList(keyColumns.size(), fields.size()));
+            Record row;
+            while ((row = resultSetRecordSet.next()) != null) {
+                List<String> key = new ArrayList<>(keyFields.size());
+                for (String keyField : keyFields) {
+                    key.add(row.getAsString(keyField));
+                }
+                if (!records.containsKey(key)) {
+                    Map<String, Object> values = new LinkedHashMap<>(row.toMap());
+                    keyFields.forEach(values::remove);
+                    records.put(key, new MapRecord(schema, values));
+                }
             }
         }
+        getLogger().debug("Loaded " + records.size() + " rows of table into memory");
+        return Collections.unmodifiableMap(records);
+    }
 
+    /**
+     * Values of the arguments in the order of their indexes, as strings.
+     */
+    private static List<String> getPreloadKey(Map<String, Object> coordinates) {
+        return coordinates.entrySet().stream()
+                .filter(entry -> entry.getKey().matches(ARGS_PATTERN))
+                .sorted(Comparator.comparingInt(entry -> Integer.parseInt(entry.getKey().replaceFirst(ARG_PREFIX, ""))))
+                .map(entry -> entry.getValue() == null ? null : entry.getValue().toString())
+                .collect(Collectors.toList());
+    }
+
+    @OnDisabled
+    public void onDisabled() {
+        synchronized (preloadLock) {
+            if (preloadExecutor != null) {
+                preloadExecutor.shutdownNow();
+                preloadExecutor = null;
+            }
+            preloadedRecords = null;
+        }
+        if (refreshExecutor != null) {
+            refreshExecutor.shutdownNow();
+            refreshExecutor = null;
+        }
+        CacheStats stats = cache.stats();
+        getLogger().info("Lookup cache hit ratio " + String.format("%.3f", stats.hitRate()) + " of " + stats.requestCount()
+                + " lookups, " + getNegativeCacheStats().hitCount() + " negative cache hits, " + queryCount.sum() + " database queries");
     }
 
     @Override
@@ -142,9 +387,190 @@ public class DatabaseRecordLookupService extends AbstractDatabaseLookupService i
             return Optional.empty();
         }
 
-        String tableName = getProperty(TABLE_NAME).evaluateAttributeExpressions(context).getValue();
-        String lookupValueColumnsList = getProperty(LOOKUP_VALUE_COLUMNS).evaluateAttributeExpressions(context).getValue();
-        String whereClause = getProperty(WHERE_CLAUSE).evaluateAttributeExpressions(context).getValue();
+        Map<List<String>, Record> preloadedRecords = this.preloadedRecords;
+        if (preloadedRecords != null) {
+            return Optional.ofNullable(preloadedRecords.get(getPreloadKey(coordinates)));
+        }
+
+        LookupSqlQuery query = createQuery(context).withArgs(getQueryArgs(coordinates));
+
+        Cache<LookupSqlQuery, Boolean> negativeCache = this.negativeCache;
+        if (negativeCache != null && negativeCache.getIfPresent(query) != null) {
+            return Optional.empty();
+        }
+        try {
+            Record record = cache.get(query);
+            if (record == null && negativeCache != null) {
+                negativeCache.put(query, Boolean.TRUE);
+            }
+            return Optional.ofNullable(record);
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof LookupFailureException) {
+                throw (LookupFailureException) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Loads the record of a query missing from the cache or due for refresh. Concurrent lookups of the same query wait
+     * for a single load, and a refreshed entry keeps being returned until its reload completes.
+     */
+    private Record load(LookupSqlQuery query) throws LookupFailureException {
+        try (Connection conn = dbcpService.getConnection(query.getContext());
+             PreparedStatement statement = query.toStatement(conn);
+             ResultSet resultSet = statement.executeQuery()) {
+            queryCount.increment();
+            ResultSetRecordSet resultSetRecordSet = new ResultSetRecordSet(resultSet, null);
+            return resultSetRecordSet.next();
+        } catch (SQLException se) {
+            throw new LookupFailureException("Error executing SQL statement. " + (se.getCause() == null ? se.getMessage() : se.getCause().getMessage()), se);
+        } catch (IOException ioe) {
+            throw new LookupFailureException("Error retrieving result set for SQL statement. " + (ioe.getCause() == null ? ioe.getMessage() : ioe.getCause().getMessage()), ioe);
+        }
+    }
+
+    /**
+     * Loads records of the cache. Only reloads of refreshed entries run on the refresh thread, while other asynchronous
+     * work of the cache, like maintenance, stays on the default executor of Caffeine.
+     */
+    private class RecordLoader implements CacheLoader<LookupSqlQuery, Record> {
+
+        @Override
+        public Record load(LookupSqlQuery query) throws LookupFailureException {
+            return DatabaseRecordLookupService.this.load(query);
+        }
+
+        @Override
+        public CompletableFuture<Record> asyncReload(LookupSqlQuery query, Record oldRecord, Executor executor) {
+            return CacheLoader.super.asyncReload(query, oldRecord, DatabaseRecordLookupService.this::executeRefresh);
+        }
+    }
+
+    /**
+     * Runs cache refreshes on the executor of the current enablement, or on the calling thread when the service was
+     * disabled in the meantime.
+     */
+    private void executeRefresh(Runnable task) {
+        ExecutorService executor = refreshExecutor;
+        if (executor == null || executor.isShutdown()) {
+            task.run();
+        } else {
+            executor.execute(task);
+        }
+    }
+
+    /**
+     * Looks up coordinates not found in the cache in batch queries of at most Lookup Batch Size coordinates, all on
+     * one connection. Equal coordinates are looked up once, and coordinates remembered as not found are not looked up.
+     */
+    @Override
+    public List<Optional<Record>> lookupAll(List<Map<String, Object>> coordinates, Map<String, String> context) throws LookupFailureException {
+        Map<List<String>, Record> preloadedRecords = this.preloadedRecords;
+        if (preloadedRecords != null) {
+            return coordinates.stream()
+                    .map(coords -> coords == null ? Optional.<Record>empty() : Optional.ofNullable(preloadedRecords.get(getPreloadKey(coords))))
+                    .collect(Collectors.toList());
+        }
+        List<Optional<Record>> results = new ArrayList<>(Collections.nCopies(coordinates.size(), Optional.empty()));
+        LookupSqlQuery template = createQuery(context);
+        Map<LookupSqlQuery, List<Integer>> missing = new LinkedHashMap<>();
+        Cache<LookupSqlQuery, Boolean> negativeCache = this.negativeCache;
+        for (int i = 0; i < coordinates.size(); i++) {
+            if (coordinates.get(i) == null) {
+                continue;
+            }
+            LookupSqlQuery query = template.withArgs(getQueryArgs(coordinates.get(i)));
+            if (negativeCache != null && negativeCache.getIfPresent(query) != null) {
+                continue;
+            }
+            Record recordFromCache = cache.getIfPresent(query);
+            if (recordFromCache != null) {
+                results.set(i, Optional.of(recordFromCache));
+            } else {
+                missing.computeIfAbsent(query, k -> new ArrayList<>()).add(i);
+            }
+        }
+        if (missing.isEmpty()) {
+            return results;
+        }
+        List<LookupSqlQuery> queries = new ArrayList<>(missing.keySet());
+        try (Connection conn = dbcpService.getConnection(context)) {
+            for (int from = 0; from < queries.size(); from += batchSize) {
+                List<LookupSqlQuery> batch = queries.subList(from, Math.min(from + batchSize, queries.size()));
+                Map<LookupSqlQuery, Record> found = template.isBatchable() ? lookupBatch(conn, batch) : lookupEach(conn, batch);
+                for (Map.Entry<LookupSqlQuery, Record> entry : found.entrySet()) {
+                    cache.put(entry.getKey(), entry.getValue());
+                    for (int i : missing.get(entry.getKey())) {
+                        results.set(i, Optional.of(entry.getValue()));
+                    }
+                }
+                if (negativeCache != null) {
+                    batch.stream().filter(query -> !found.containsKey(query)).forEach(query -> negativeCache.put(query, Boolean.TRUE));
+                }
+            }
+        } catch (SQLException se) {
+            throw new LookupFailureException("Error executing SQL statement. " + (se.getCause() == null ? se.getMessage() : se.getCause().getMessage()), se);
+        } catch (IOException ioe) {
+            throw new LookupFailureException("Error retrieving result set for SQL statement. " + (ioe.getCause() == null ? ioe.getMessage() : ioe.getCause().getMessage()), ioe);
+        }
+        return results;
+    }
+
+    /**
+     * Returns the first row of each query that has any, without the batch index column.
+     */
+    private Map<LookupSqlQuery, Record> lookupBatch(Connection conn, List<LookupSqlQuery> batch) throws SQLException, IOException {
+        Map<LookupSqlQuery, Record> found = new HashMap<>();
+        try (PreparedStatement statement = LookupSqlQuery.toBatchStatement(conn, batch);
+             ResultSet resultSet = statement.executeQuery()) {
+            queryCount.increment();
+            ResultSetRecordSet resultSetRecordSet = new ResultSetRecordSet(resultSet, null);
+            List<RecordField> fields = resultSetRecordSet.getSchema().getFields();
+            String indexField = fields.get(0).getFieldName();
+            RecordSchema schema = new SimpleRecordSchema(fields.subList(1, fields.size()));
+            Record row;
+            while ((row = resultSetRecordSet.next()) != null) {
+                LookupSqlQuery query = batch.get(row.getAsInt(indexField));
+                if (!found.containsKey(query)) {
+                    Map<String, Object> values = new LinkedHashMap<>(row.toMap());
+                    values.remove(indexField);
+                    found.put(query, new MapRecord(schema, values));
+                }
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Returns the first row of each query that has any, querying them one by one on the connection.
+     */
+    private Map<LookupSqlQuery, Record> lookupEach(Connection conn, List<LookupSqlQuery> queries) throws SQLException, IOException {
+        Map<LookupSqlQuery, Record> found = new HashMap<>();
+        for (LookupSqlQuery query : queries) {
+            try (PreparedStatement statement = query.toStatement(conn);
+                 ResultSet resultSet = statement.executeQuery()) {
+                queryCount.increment();
+                Record record = new ResultSetRecordSet(resultSet, null).next();
+                if (record != null) {
+                    found.put(query, record);
+                }
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Query without arguments, evaluated for the context.
+     */
+    private LookupSqlQuery createQuery(Map<String, String> context) {
+        return createQuery(getConfigurationContext(), context);
+    }
+
+    private static LookupSqlQuery createQuery(PropertyContext properties, Map<String, String> context) {
+        String tableName = properties.getProperty(TABLE_NAME).evaluateAttributeExpressions(context).getValue();
+        String lookupValueColumnsList = properties.getProperty(LOOKUP_VALUE_COLUMNS).evaluateAttributeExpressions(context).getValue();
+        String whereClause = properties.getProperty(WHERE_CLAUSE).evaluateAttributeExpressions(context).getValue();
         Set<String> lookupValueColumnsSet = new LinkedHashSet<>();
         if (lookupValueColumnsList != null) {
             Stream.of(lookupValueColumnsList)
@@ -153,28 +579,50 @@ public class DatabaseRecordLookupService extends AbstractDatabaseLookupService i
                     .map(String::trim)
                     .forEach(lookupValueColumnsSet::add);
         }
-        LookupSqlQuery query = new LookupSqlQuery(lookupValueColumnsSet, tableName, whereClause, getQueryArgs(coordinates));
+        return new LookupSqlQuery(lookupValueColumnsSet, tableName, whereClause, Collections.emptySet(), getConnectionAttributes(context));
+    }
 
-        Record recordFromCache = cache.get(query, k -> null);
-        if (recordFromCache == null) {
-            Connection conn = dbcpService.getConnection(context);
-            try {
-                PreparedStatement statement = query.toStatement(conn);
-                ResultSet resultSet = statement.executeQuery();
-                ResultSetRecordSet resultSetRecordSet = new ResultSetRecordSet(resultSet, null);
-                Record record = resultSetRecordSet.next();
-                if (record != null) {
-                    cache.put(query, record);
-                }
-                return Optional.ofNullable(record);
-            } catch (SQLException se) {
-                throw new LookupFailureException("Error executing SQL statement. " + (se.getCause() == null ? se.getMessage() : se.getCause().getMessage()), se);
-            } catch (IOException ioe) {
-                throw new LookupFailureException("Error retrieving result set for SQL statement. " + (ioe.getCause() == null ? ioe.getMessage() : ioe.getCause().getMessage()), ioe);
-            }
-        } else {
-            return Optional.of(recordFromCache);
+    /**
+     * Attributes of the lookup context a connection pool reads, so cached queries do not keep whole FlowFile
+     * attribute maps alive.
+     */
+    private static Map<String, String> getConnectionAttributes(Map<String, String> context) {
+        if (context == null) {
+            return null;
         }
+        String databaseName = context.get(DATABASE_NAME_ATTRIBUTE);
+        return databaseName == null ? Collections.emptyMap() : Collections.singletonMap(DATABASE_NAME_ATTRIBUTE, databaseName);
+    }
+
+    /**
+     * Statistics of the record cache since it was created.
+     */
+    public CacheStats getCacheStats() {
+        return cache.stats();
+    }
+
+    /**
+     * Estimated memory of cached records in bytes when the cache is bounded by Max Cache Memory, otherwise the number
+     * of cached records. Pending cache maintenance is performed first.
+     */
+    public long getCacheWeight() {
+        cache.cleanUp();
+        return cache.policy().eviction().map(eviction -> eviction.weightedSize().orElse(cache.estimatedSize())).orElse(cache.estimatedSize());
+    }
+
+    /**
+     * Statistics of the cache of lookup values not found, empty when negative caching is disabled.
+     */
+    public CacheStats getNegativeCacheStats() {
+        Cache<LookupSqlQuery, Boolean> negativeCache = this.negativeCache;
+        return negativeCache == null ? CacheStats.empty() : negativeCache.stats();
+    }
+
+    /**
+     * Number of queries sent to the database since the service was enabled.
+     */
+    public long getQueryCount() {
+        return queryCount.sum();
     }
 
     private static boolean isNotBlank(final String value) {
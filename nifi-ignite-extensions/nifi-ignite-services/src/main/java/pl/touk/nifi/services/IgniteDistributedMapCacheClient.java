@@ -1,28 +1,235 @@
 package pl.touk.nifi.services;
 
+import org.apache.ignite.cache.CacheAtomicityMode;
+import org.apache.ignite.cache.query.QueryCursor;
+import org.apache.ignite.cache.query.ScanQuery;
+import org.apache.ignite.client.ClientCache;
+import org.apache.ignite.client.ClientCacheConfiguration;
+import org.apache.ignite.client.ClientConnectionException;
+import org.apache.ignite.client.ClientTransaction;
+import org.apache.ignite.transactions.TransactionConcurrency;
+import org.apache.ignite.transactions.TransactionIsolation;
+import org.apache.nifi.annotation.documentation.CapabilityDescription;
+import org.apache.nifi.annotation.documentation.Tags;
+import org.apache.nifi.annotation.lifecycle.OnDisabled;
+import org.apache.nifi.annotation.lifecycle.OnEnabled;
+import org.apache.nifi.components.PropertyDescriptor;
+import org.apache.nifi.controller.ConfigurationContext;
 import org.apache.nifi.distributed.cache.client.*;
+import org.apache.nifi.processor.util.StandardValidators;
+import org.apache.nifi.reporting.InitializationException;
 import org.apache.nifi.util.Tuple;
+import pl.touk.nifi.common.ThrowingConsumer;
 
-import java.io.ByteArrayOutputStream;
+import javax.cache.Cache;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
-/*
-TODO:
-1. Implement AtomicDistributedMapCacheClient<byte[]>
-2. Add support for DistributedMapCacheClient#removeByPattern
- */
-public class IgniteDistributedMapCacheClient extends AbstractIgniteClientCache<byte[], byte[]> implements DistributedMapCacheClient {
+@Tags({"ignite", "distributed", "cache", "map", "client", "thin client"})
+@CapabilityDescription("Provides a distributed map cache client backed by an Ignite cache, accessed with Ignite thin clients. "
+        + "Replacing fetched entries, as done by the Wait and Notify processors, requires a TRANSACTIONAL cache, so set the "
+        + "Atomicity Mode to TRANSACTIONAL for them. An ATOMIC cache is faster for all other calls.")
+public class IgniteDistributedMapCacheClient extends AbstractIgniteClientCache<byte[], byte[]> implements AtomicDistributedMapCacheClient<byte[]> {
+
+    private static final int ASYNC_QUEUE_SIZE = 1024;
+
+    private static final long ASYNC_SHUTDOWN_TIMEOUT_SECONDS = 10;
+
+    public static final PropertyDescriptor ATOMICITY_MODE = new PropertyDescriptor.Builder()
+            .displayName("Atomicity Mode")
+            .name("ignite-atomicity-mode")
+            .description("Atomicity mode the cache is created with, when it does not exist yet. Fetched entries can be replaced only "
+                    + "in a TRANSACTIONAL cache, while an ATOMIC cache is faster for all other calls. An existing cache keeps its mode.")
+            .defaultValue(CacheAtomicityMode.ATOMIC.name())
+            .allowableValues(CacheAtomicityMode.ATOMIC.name(), CacheAtomicityMode.TRANSACTIONAL.name())
+            .required(true)
+            .build();
+
+    public static final PropertyDescriptor MAX_BATCH_SIZE = new PropertyDescriptor.Builder()
+            .displayName("Max Batch Size")
+            .name("ignite-max-batch-size")
+            .description("Maximum number of concurrent single key get, contains and put calls sent to Ignite in one bulk request. "
+                    + "Set to 1 to send every call in its own request.")
+            .defaultValue("500")
+            .required(true)
+            .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+            .build();
+
+    public static final PropertyDescriptor BATCH_WINDOW = new PropertyDescriptor.Builder()
+            .displayName("Batch Window")
+            .name("ignite-batch-window")
+            .description("How long a bulk request waits for more concurrent calls before it is sent. With zero, calls made while "
+                    + "the previous bulk request is in flight are sent together, so no latency is added.")
+            .defaultValue("0 millis")
+            .required(true)
+            .addValidator(StandardValidators.TIME_PERIOD_VALIDATOR)
+            .build();
+
+    public static final PropertyDescriptor SCAN_PAGE_SIZE = new PropertyDescriptor.Builder()
+            .displayName("Scan Page Size")
+            .name("ignite-scan-page-size")
+            .description("Number of entries fetched at once when the cache is scanned for key set and remove by pattern calls, "
+                    + "which is also the number of keys removed in one request.")
+            .defaultValue("1024")
+            .required(true)
+            .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+            .build();
+
+    public static final PropertyDescriptor SERVER_SIDE_PATTERN_FILTER = new PropertyDescriptor.Builder()
+            .displayName("Server Side Pattern Filter")
+            .name("ignite-server-side-pattern-filter")
+            .description("Whether keys are matched against remove patterns by Ignite server nodes, so only matching entries are sent "
+                    + "to NiFi. Requires the nifi-ignite-services jar on the classpath of the server nodes.")
+            .defaultValue("false")
+            .allowableValues("true", "false")
+            .required(true)
+            .build();
+
+    public static final PropertyDescriptor MAX_OUTSTANDING_REQUESTS = new PropertyDescriptor.Builder()
+            .displayName("Max Outstanding Requests")
+            .name("ignite-max-outstanding-requests")
+            .description("Maximum number of asynchronous calls in flight at once. They share the connections of the client, "
+                    + "and single key calls are batched like synchronous ones. Further calls are queued, and when "
+                    + ASYNC_QUEUE_SIZE + " calls are queued the calling thread makes the call itself.")
+            .defaultValue("16")
+            .required(true)
+            .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+            .build();
+
+    // Byte array keys are compared by content, and bulk writes take keys in the same order to avoid deadlocks
+    private static final Comparator<byte[]> KEY_ORDER = (a, b) -> {
+        for (int i = 0; i < Math.min(a.length, b.length); i++) {
+            int result = Integer.compare(a[i] & 0xff, b[i] & 0xff);
+            if (result != 0) {
+                return result;
+            }
+        }
+        return Integer.compare(a.length, b.length);
+    };
+
+    private volatile CacheAtomicityMode atomicityMode;
+
+    private volatile boolean transactional;
+
+    private volatile int scanPageSize;
+
+    private volatile boolean serverSidePatternFilter;
+
+    private volatile RequestBatcher<byte[], byte[]> getBatcher;
+
+    private volatile RequestBatcher<Tuple<byte[], byte[]>, Void> putBatcher;
+
+    private volatile ExecutorService asyncExecutor;
+
+    @Override
+    protected List<PropertyDescriptor> getSupportedPropertyDescriptors() {
+        return Stream.concat(
+                super.getSupportedPropertyDescriptors().stream(),
+                Stream.of(ATOMICITY_MODE, MAX_BATCH_SIZE, BATCH_WINDOW, SCAN_PAGE_SIZE, SERVER_SIDE_PATTERN_FILTER, MAX_OUTSTANDING_REQUESTS)
+        ).collect(Collectors.toList());
+    }
+
+    @Override @OnEnabled
+    public void onEnabled(final ConfigurationContext context) throws InitializationException {
+        atomicityMode = CacheAtomicityMode.valueOf(context.getProperty(ATOMICITY_MODE).getValue());
+        super.onEnabled(context);
+        transactional = getCache().getConfiguration().getAtomicityMode() == CacheAtomicityMode.TRANSACTIONAL;
+        if (!transactional) {
+            getLogger().warn("Cache " + cacheName + " is ATOMIC, so replacing fetched entries, eg. by Wait and Notify processors, "
+                    + "will fail. Use a TRANSACTIONAL cache for them, an existing cache keeps the Atomicity Mode it was created with.");
+        }
+        scanPageSize = context.getProperty(SCAN_PAGE_SIZE).asInteger();
+        serverSidePatternFilter = context.getProperty(SERVER_SIDE_PATTERN_FILTER).asBoolean();
+        int maxBatchSize = context.getProperty(MAX_BATCH_SIZE).asInteger();
+        long batchWindow = context.getProperty(BATCH_WINDOW).asTimePeriod(TimeUnit.MILLISECONDS);
+        if (maxBatchSize > 1) {
+            int clientCount = getIgniteClients().size();
+            getBatcher = new RequestBatcher<>("Ignite get batcher for " + cacheName, this::getBatch, clientCount, maxBatchSize, batchWindow);
+            putBatcher = new RequestBatcher<>("Ignite put batcher for " + cacheName, this::putBatch, clientCount, maxBatchSize, batchWindow);
+        }
+        int maxOutstandingRequests = context.getProperty(MAX_OUTSTANDING_REQUESTS).asInteger();
+        AtomicInteger threadCount = new AtomicInteger();
+        asyncExecutor = new ThreadPoolExecutor(maxOutstandingRequests, maxOutstandingRequests, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(ASYNC_QUEUE_SIZE),
+                runnable -> {
+                    Thread thread = new Thread(runnable, "Ignite async request " + threadCount.incrementAndGet() + " for " + cacheName);
+                    thread.setDaemon(true);
+                    return thread;
+                },
+                (runnable, executor) -> {
+                    // Unlike CallerRunsPolicy, never discards calls silently, so returned futures always complete
+                    if (executor.isShutdown()) {
+                        throw new RejectedExecutionException("Client is closed");
+                    }
+                    runnable.run();
+                });
+    }
+
+    @Override @OnDisabled
+    public void onDisabled() throws Exception {
+        if (asyncExecutor != null) {
+            // Calls in flight complete before batchers and the client are closed
+            asyncExecutor.shutdown();
+            if (!asyncExecutor.awaitTermination(ASYNC_SHUTDOWN_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                getLogger().warn("Asynchronous calls to cache " + cacheName + " did not complete in time and are cancelled");
+                asyncExecutor.shutdownNow();
+            }
+            asyncExecutor = null;
+        }
+        if (getBatcher != null) {
+            getBatcher.close();
+            getBatcher = null;
+        }
+        if (putBatcher != null) {
+            putBatcher.close();
+            putBatcher = null;
+        }
+        super.onDisabled();
+    }
+
+    /**
+     * Created with the configured atomicity mode. Fetched entries can be replaced only in a TRANSACTIONAL cache.
+     */
+    @Override
+    protected ClientCacheConfiguration getCacheConfiguration(String cacheName) {
+        return super.getCacheConfiguration(cacheName).setAtomicityMode(atomicityMode);
+    }
 
     @Override
     public <K, V> boolean putIfAbsent(K key, V value, Serializer<K> keySerializer, Serializer<V> valueSerializer) throws IOException {
         Tuple<byte[],byte[]> kv = serialize(key, value, keySerializer, valueSerializer);
-        return getCache().putIfAbsent(kv.getKey(), kv.getValue());
+        return putIfAbsent(kv);
     }
 
     @Override
     public <K, V> V getAndPutIfAbsent(K key, V value, Serializer<K> keySerializer, Serializer<V> valueSerializer, Deserializer<V> valueDeserializer) throws IOException {
         Tuple<byte[],byte[]> kv = serialize(key, value, keySerializer, valueSerializer);
-        if (getCache().putIfAbsent(kv.getKey(), kv.getValue())) {
+        if (putIfAbsent(kv)) {
             return value;
         } else {
             return null;
@@ -32,49 +239,380 @@ public class IgniteDistributedMapCacheClient extends AbstractIgniteClientCache<b
     @Override
     public <K> boolean containsKey(K key, Serializer<K> keySerializer) throws IOException {
         byte[] keyBytes = serialize(key, keySerializer);
-        return getCache().containsKey(keyBytes);
+        if (getNear(keyBytes) != null) {
+            return true;
+        }
+        // Batched as a get, Ignite does not store null values
+        return getBatcher == null ? getCache().containsKey(keyBytes) : read(keyBytes) != null;
     }
 
     @Override
     public <K, V> void put(K key, V value, Serializer<K> keySerializer, Serializer<V> valueSerializer) throws IOException {
-        Tuple<byte[],byte[]> kv = serialize(key, value, keySerializer, valueSerializer);
-        getCache().put(kv.getKey(), kv.getValue());
+        put(serialize(key, value, keySerializer, valueSerializer));
+    }
+
+    /**
+     * Puts all entries in a single request.
+     */
+    public <K, V> void putAll(Map<K, V> keysAndValues, Serializer<K> keySerializer, Serializer<V> valueSerializer) throws IOException {
+        Map<byte[], byte[]> entries = new TreeMap<>(KEY_ORDER);
+        for (Map.Entry<K, V> entry : keysAndValues.entrySet()) {
+            Tuple<byte[],byte[]> kv = serialize(entry.getKey(), entry.getValue(), keySerializer, valueSerializer);
+            entries.put(kv.getKey(), kv.getValue());
+        }
+        getCache().putAll(entries);
+        entries.keySet().forEach(this::invalidateNear);
     }
 
     @Override
     public <K, V> V get(K key, Serializer<K> keySerializer, Deserializer<V> valueDeserializer) throws IOException {
         byte[] keyBytes = serialize(key, keySerializer);
-        byte[] valueBytes = getCache().get(keyBytes);
+        byte[] valueBytes = getNear(keyBytes);
+        if (valueBytes == null) {
+            valueBytes = read(keyBytes);
+        }
         return valueBytes == null ? null : valueDeserializer.deserialize(valueBytes);
     }
 
+    /**
+     * Returns the entry with its current serialized value as the revision, or null if the key is not in the cache.
+     * Always read from Ignite, as a revision from the near cache could be stale.
+     */
+    @Override
+    public <K, V> AtomicCacheEntry<K, V, byte[]> fetch(K key, Serializer<K> keySerializer, Deserializer<V> valueDeserializer) throws IOException {
+        byte[] keyBytes = serialize(key, keySerializer);
+        byte[] valueBytes = read(keyBytes);
+        return valueBytes == null ? null : new AtomicCacheEntry<>(key, valueDeserializer.deserialize(valueBytes), valueBytes);
+    }
+
+    /**
+     * Puts the entry only if absent when it has no revision. Otherwise replaces the value only if it has not changed
+     * since it was fetched, in an optimistic transaction that fails to commit when the entry is modified concurrently,
+     * so no locks are held between fetch and replace. Byte arrays are compared by reference by Ignite, so
+     * {@code ClientCache#replace(K, V, V)} cannot be used instead. A commit rejected by the server is reported as not
+     * replaced, while connection failures are reported as errors.
+     */
+    @Override
+    public <K, V> boolean replace(AtomicCacheEntry<K, V, byte[]> entry, Serializer<K> keySerializer, Serializer<V> valueSerializer) throws IOException {
+        Tuple<byte[],byte[]> kv = serialize(entry.getKey(), entry.getValue(), keySerializer, valueSerializer);
+        Optional<byte[]> revision = entry.getRevision();
+        if (!revision.isPresent()) {
+            return putIfAbsent(kv);
+        }
+        if (!transactional) {
+            throw new IOException("Replacing fetched entries requires cache " + cacheName + " to be TRANSACTIONAL");
+        }
+        try (ClientTransaction tx = getIgniteClient().transactions().txStart(TransactionConcurrency.OPTIMISTIC, TransactionIsolation.SERIALIZABLE)) {
+            if (!Arrays.equals(getCache().get(kv.getKey()), revision.get())) {
+                return false;
+            }
+            getCache().put(kv.getKey(), kv.getValue());
+            try {
+                tx.commit();
+            } catch (ClientConnectionException e) {
+                invalidateNear(kv.getKey());
+                throw new IOException("Could not replace entry in cache " + cacheName, e);
+            } catch (RuntimeException e) {
+                // The client API does not tell conflicts apart from other rejected commits, which are rare once the entry was read
+                getLogger().debug("Entry was modified concurrently: " + e.getMessage());
+                invalidateNear(kv.getKey());
+                return false;
+            }
+            invalidateNear(kv.getKey());
+            return true;
+        }
+    }
+
+    /**
+     * Gets all values not found in the near cache in a single request. Keys not found in the cache are mapped to null.
+     */
+    @Override
+    public <K, V> Map<K, V> subMap(Set<K> keys, Serializer<K> keySerializer, Deserializer<V> valueDeserializer) throws IOException {
+        Map<K, byte[]> keysBytes = new HashMap<>();
+        Map<byte[], byte[]> values = new TreeMap<>(KEY_ORDER);
+        for (K key : keys) {
+            byte[] keyBytes = serialize(key, keySerializer);
+            keysBytes.put(key, keyBytes);
+            byte[] valueBytes = getNear(keyBytes);
+            if (valueBytes != null) {
+                values.put(keyBytes, valueBytes);
+            }
+        }
+        if (values.size() < keysBytes.size()) {
+            Map<byte[], Long> stamps = new TreeMap<>(KEY_ORDER);
+            keysBytes.values().stream().filter(key -> !values.containsKey(key)).forEach(key -> stamps.put(key, getNearStamp(key)));
+            Map<byte[], byte[]> fetched = getAll(getCache(), new ArrayList<>(stamps.keySet()));
+            fetched.forEach((key, value) -> putNear(key, value, stamps.get(key)));
+            values.putAll(fetched);
+        }
+        Map<K, V> result = new HashMap<>();
+        for (Map.Entry<K, byte[]> key : keysBytes.entrySet()) {
+            byte[] valueBytes = values.get(key.getValue());
+            result.put(key.getKey(), valueBytes == null ? null : valueDeserializer.deserialize(valueBytes));
+        }
+        return result;
+    }
+
     @Override
     public void close() throws IOException {}
 
     @Override
     public <K> boolean remove(K key, Serializer<K> keySerializer) throws IOException {
         byte[] keyBytes = serialize(key, keySerializer);
-        return getCache().remove(keyBytes);
+        boolean removed = getCache().remove(keyBytes);
+        invalidateNear(keyBytes);
+        return removed;
+    }
+
+    @Override
+    public <K, V> V removeAndGet(K key, Serializer<K> keySerializer, Deserializer<V> valueDeserializer) throws IOException {
+        byte[] keyBytes = serialize(key, keySerializer);
+        byte[] valueBytes = getCache().getAndRemove(keyBytes);
+        invalidateNear(keyBytes);
+        return valueBytes == null ? null : valueDeserializer.deserialize(valueBytes);
+    }
+
+    /**
+     * Removes all keys in a single request.
+     */
+    public <K> void removeAll(Set<K> keys, Serializer<K> keySerializer) throws IOException {
+        Set<byte[]> keysBytes = new TreeSet<>(KEY_ORDER);
+        for (K key : keys) {
+            keysBytes.add(serialize(key, keySerializer));
+        }
+        removeAll(keysBytes);
+    }
+
+    /**
+     * Scans the cache page by page and removes matching keys a page at a time, so keys are never all held in memory.
+     */
+    @Override
+    public long removeByPattern(String regex) throws IOException {
+        AtomicLong removed = new AtomicLong();
+        scan(regex, matching -> {
+            removeAll(keysOf(matching));
+            removed.addAndGet(matching.size());
+        });
+        return removed.get();
+    }
+
+    @Override
+    public <K, V> Map<K, V> removeByPatternAndGet(String regex, Deserializer<K> keyDeserializer, Deserializer<V> valueDeserializer) throws IOException {
+        Map<K, V> removed = new HashMap<>();
+        scan(regex, matching -> {
+            removeAll(keysOf(matching));
+            for (Cache.Entry<byte[], byte[]> entry : matching) {
+                removed.put(keyDeserializer.deserialize(entry.getKey()), valueDeserializer.deserialize(entry.getValue()));
+            }
+        });
+        return removed;
+    }
+
+    @Override
+    public <K> Set<K> keySet(Deserializer<K> keyDeserializer) throws IOException {
+        Set<K> keys = new HashSet<>();
+        forEachKey(keyDeserializer, keys::add);
+        return keys;
+    }
+
+    /**
+     * Streams all keys of the cache, fetched a page at a time.
+     */
+    public <K> void forEachKey(Deserializer<K> keyDeserializer, ThrowingConsumer<K, IOException> consumer) throws IOException {
+        ScanQuery<byte[], byte[]> query = new ScanQuery<byte[], byte[]>().setPageSize(scanPageSize);
+        try (QueryCursor<Cache.Entry<byte[], byte[]>> cursor = getCache().query(query)) {
+            for (Cache.Entry<byte[], byte[]> entry : cursor) {
+                consumer.accept(keyDeserializer.deserialize(entry.getKey()));
+            }
+        }
+    }
+
+    /**
+     * Passes entries with keys matching the pattern in pages. The next page is fetched only after the previous one
+     * has been consumed.
+     */
+    private void scan(String regex, ThrowingConsumer<List<Cache.Entry<byte[], byte[]>>, IOException> consumer) throws IOException {
+        Pattern pattern = Pattern.compile(regex);
+        ScanQuery<byte[], byte[]> query = new ScanQuery<byte[], byte[]>().setPageSize(scanPageSize);
+        if (serverSidePatternFilter) {
+            query.setFilter(new KeyPatternFilter<>(regex));
+        }
+        List<Cache.Entry<byte[], byte[]>> page = new ArrayList<>(scanPageSize);
+        try (QueryCursor<Cache.Entry<byte[], byte[]>> cursor = getCache().query(query)) {
+            for (Cache.Entry<byte[], byte[]> entry : cursor) {
+                if (serverSidePatternFilter || KeyPatternFilter.matches(pattern, entry.getKey())) {
+                    page.add(entry);
+                }
+                if (page.size() >= scanPageSize) {
+                    consumer.accept(page);
+                    page = new ArrayList<>(scanPageSize);
+                }
+            }
+        }
+        if (!page.isEmpty()) {
+            consumer.accept(page);
+        }
+    }
+
+    /**
+     * Removes the keys, and then drops them from the near cache.
+     */
+    private void removeAll(Set<byte[]> keys) {
+        getCache().removeAll(keys);
+        keys.forEach(this::invalidateNear);
+    }
+
+    private static Set<byte[]> keysOf(List<Cache.Entry<byte[], byte[]>> entries) {
+        Set<byte[]> keys = new TreeSet<>(KEY_ORDER);
+        for (Cache.Entry<byte[], byte[]> entry : entries) {
+            keys.add(entry.getKey());
+        }
+        return keys;
+    }
+
+    /**
+     * Asynchronous variant of {@link #get(Object, Serializer, Deserializer)}. The key is serialized by the calling
+     * thread, the request is made and the value deserialized by a request thread.
+     */
+    public <K, V> CompletableFuture<V> getAsync(K key, Serializer<K> keySerializer, Deserializer<V> valueDeserializer) throws IOException {
+        byte[] keyBytes = serialize(key, keySerializer);
+        return async(() -> {
+            byte[] valueBytes = getNear(keyBytes);
+            if (valueBytes == null) {
+                valueBytes = read(keyBytes);
+            }
+            return valueBytes == null ? null : valueDeserializer.deserialize(valueBytes);
+        });
+    }
+
+    public <K> CompletableFuture<Boolean> containsKeyAsync(K key, Serializer<K> keySerializer) throws IOException {
+        byte[] keyBytes = serialize(key, keySerializer);
+        return async(() -> getNear(keyBytes) != null || (getBatcher == null ? getCache().containsKey(keyBytes) : read(keyBytes) != null));
+    }
+
+    public <K, V> CompletableFuture<Void> putAsync(K key, V value, Serializer<K> keySerializer, Serializer<V> valueSerializer) throws IOException {
+        Tuple<byte[],byte[]> kv = serialize(key, value, keySerializer, valueSerializer);
+        return async(() -> {
+            put(kv);
+            return null;
+        });
+    }
+
+    public <K, V> CompletableFuture<Boolean> putIfAbsentAsync(K key, V value, Serializer<K> keySerializer, Serializer<V> valueSerializer) throws IOException {
+        Tuple<byte[],byte[]> kv = serialize(key, value, keySerializer, valueSerializer);
+        return async(() -> putIfAbsent(kv));
+    }
+
+    public <K> CompletableFuture<Boolean> removeAsync(K key, Serializer<K> keySerializer) throws IOException {
+        byte[] keyBytes = serialize(key, keySerializer);
+        return async(() -> {
+            boolean removed = getCache().remove(keyBytes);
+            invalidateNear(keyBytes);
+            return removed;
+        });
+    }
+
+    /**
+     * Keys of the near cache are compared by content.
+     */
+    @Override
+    protected Object getNearCacheKey(byte[] key) {
+        return ByteBuffer.wrap(key);
     }
 
     @Override
-    public long removeByPattern(String s) {
-        throw new UnsupportedOperationException("Remove by pattern is not supported");
+    protected int getNearCacheWeight(Object nearCacheKey, byte[] value) {
+        return ((ByteBuffer) nearCacheKey).remaining() + value.length;
+    }
+
+    /**
+     * Reads the value from Ignite and keeps it in the near cache.
+     */
+    private byte[] read(byte[] keyBytes) throws IOException {
+        long stamp = getNearStamp(keyBytes);
+        RequestBatcher<byte[], byte[]> batcher = getBatcher;
+        byte[] valueBytes = batcher == null ? getCache().get(keyBytes) : batcher.submit(keyBytes);
+        putNear(keyBytes, valueBytes, stamp);
+        return valueBytes;
+    }
+
+    private void put(Tuple<byte[], byte[]> kv) throws IOException {
+        RequestBatcher<Tuple<byte[], byte[]>, Void> batcher = putBatcher;
+        if (batcher == null) {
+            getCache().put(kv.getKey(), kv.getValue());
+        } else {
+            batcher.submit(kv);
+        }
+        invalidateNear(kv.getKey());
+    }
+
+    private boolean putIfAbsent(Tuple<byte[], byte[]> kv) {
+        boolean put = getCache().putIfAbsent(kv.getKey(), kv.getValue());
+        if (put) {
+            invalidateNear(kv.getKey());
+        }
+        return put;
+    }
+
+    /**
+     * Runs the request on a request thread. Concurrent requests are multiplexed over the client connections by Ignite.
+     */
+    private <T> CompletableFuture<T> async(Callable<T> request) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        ExecutorService executor = asyncExecutor;
+        if (executor == null) {
+            result.completeExceptionally(new IOException("Client is not enabled"));
+            return result;
+        }
+        try {
+            executor.execute(() -> {
+                try {
+                    result.complete(request.call());
+                } catch (Exception e) {
+                    result.completeExceptionally(e);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            result.completeExceptionally(new IOException("Client is closed", e));
+        }
+        return result;
+    }
+
+    private List<byte[]> getBatch(int clientIndex, List<byte[]> keys) {
+        Map<byte[], byte[]> values = getAll(getCache(clientIndex), keys);
+        List<byte[]> result = new ArrayList<>(keys.size());
+        for (byte[] key : keys) {
+            result.add(values.get(key));
+        }
+        return result;
+    }
+
+    private List<Void> putBatch(int clientIndex, List<Tuple<byte[], byte[]>> entries) {
+        // Later puts of the same key win, as if they were sent one by one
+        Map<byte[], byte[]> sortedEntries = new TreeMap<>(KEY_ORDER);
+        for (Tuple<byte[], byte[]> entry : entries) {
+            sortedEntries.put(entry.getKey(), entry.getValue());
+        }
+        getCache(clientIndex).putAll(sortedEntries);
+        return new ArrayList<>(Collections.nCopies(entries.size(), null));
+    }
+
+    /**
+     * Returns values mapped by key content, as keys returned by Ignite are different array instances.
+     */
+    private Map<byte[], byte[]> getAll(ClientCache<byte[], byte[]> cache, Collection<byte[]> keys) {
+        Set<byte[]> distinctKeys = new TreeSet<>(KEY_ORDER);
+        distinctKeys.addAll(keys);
+        Map<byte[], byte[]> values = new TreeMap<>(KEY_ORDER);
+        values.putAll(cache.getAll(distinctKeys));
+        return values;
     }
 
     private <K, V> Tuple<byte[],byte[]> serialize(final K key, final V value, final Serializer<K> keySerializer, final Serializer<V> valueSerializer) throws IOException {
-        ByteArrayOutputStream out = new ByteArrayOutputStream();
-        keySerializer.serialize(key, out);
-        byte[] k = out.toByteArray();
-        out.reset();
-        valueSerializer.serialize(value, out);
-        byte[] v = out.toByteArray();
-        return new Tuple<>(k, v);
+        return new Tuple<>(SerializationBuffer.serialize(key, keySerializer), SerializationBuffer.serialize(value, valueSerializer));
     }
 
     private <K> byte[] serialize(final K key, final Serializer<K> keySerializer) throws IOException {
-        ByteArrayOutputStream out = new ByteArrayOutputStream();
-        keySerializer.serialize(key, out);
-        return out.toByteArray();
+        return SerializationBuffer.serialize(key, keySerializer);
     }
 }
@@ -0,0 +1,104 @@
+package pl.touk.nifi.services;
+
+import org.apache.ignite.client.ClientCache;
+import org.apache.ignite.client.ClientCacheConfiguration;
+import org.apache.ignite.client.IgniteClient;
+import org.apache.nifi.annotation.documentation.CapabilityDescription;
+import org.apache.nifi.annotation.documentation.Tags;
+import org.apache.nifi.annotation.lifecycle.OnDisabled;
+import org.apache.nifi.annotation.lifecycle.OnEnabled;
+import org.apache.nifi.components.PropertyDescriptor;
+import org.apache.nifi.controller.ConfigurationContext;
+import org.apache.nifi.reporting.InitializationException;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+@Tags({"ignite", "client", "thin client", "connection"})
+@CapabilityDescription("Provides a pool of Ignite thin clients shared by all services using it. The clients are started when the "
+        + "first service is enabled and closed when the last one is disabled, and cache handles are created once per cache, "
+        + "so enabling many services does not open new connections.")
+public class IgniteThinClientProvider extends AbstractIgniteThinClient implements IgniteClientProvider {
+
+    private final Set<String> holders = new HashSet<>();
+
+    private final Map<String, List<ClientCache<?, ?>>> caches = new HashMap<>();
+
+    // Clients the cache handles belong to, they are replaced on reconnection
+    private List<IgniteClient> cachesClients;
+
+    private volatile ConfigurationContext context;
+
+    @Override
+    protected List<PropertyDescriptor> getSupportedPropertyDescriptors() {
+        return super.getSupportedPropertyDescriptors().stream()
+                .filter(descriptor -> !CLIENT_PROVIDER.equals(descriptor))
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * Clients are started when first acquired.
+     */
+    @Override @OnEnabled
+    public void onEnabled(final ConfigurationContext context) throws InitializationException {
+        this.context = context;
+    }
+
+    @Override @OnDisabled
+    public synchronized void onDisabled() throws Exception {
+        if (!holders.isEmpty()) {
+            getLogger().warn("Closing Ignite clients still held by " + holders);
+            holders.clear();
+        }
+        caches.clear();
+        cachesClients = null;
+        context = null;
+        super.onDisabled();
+    }
+
+    @Override
+    public synchronized List<IgniteClient> acquireClients(String serviceId) {
+        if (context == null) {
+            throw new IllegalStateException("Ignite client provider " + getIdentifier() + " is not enabled");
+        }
+        if (!isClientStarted()) {
+            initAndStartClient(context);
+        }
+        holders.add(serviceId);
+        return getIgniteClients();
+    }
+
+    @Override
+    public List<IgniteClient> getClients() {
+        return getIgniteClients();
+    }
+
+    @Override
+    public synchronized void releaseClients(String serviceId) {
+        if (holders.remove(serviceId) && holders.isEmpty()) {
+            caches.clear();
+            cachesClients = null;
+            closeIgniteClient();
+        }
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public synchronized <K, V> List<ClientCache<K, V>> getOrCreateCaches(ClientCacheConfiguration configuration) {
+        List<IgniteClient> clients = getIgniteClients();
+        if (clients != cachesClients) {
+            caches.clear();
+            cachesClients = clients;
+        }
+        List<ClientCache<?, ?>> clientCaches = caches.get(configuration.getName());
+        if (clientCaches == null) {
+            clientCaches = (List<ClientCache<?, ?>>) (List<?>) createCaches(clients, configuration);
+            caches.put(configuration.getName(), clientCaches);
+        }
+        return (List<ClientCache<K, V>>) (List<?>) clientCaches;
+    }
+}
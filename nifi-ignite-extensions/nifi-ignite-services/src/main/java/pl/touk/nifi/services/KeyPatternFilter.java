@@ -0,0 +1,35 @@
+package pl.touk.nifi.services;
+
+import org.apache.ignite.lang.IgniteBiPredicate;
+
+import java.nio.charset.StandardCharsets;
+import java.util.regex.Pattern;
+
+/**
+ * Scan query filter matching UTF-8 encoded byte array keys against a regular expression, the way NiFi cache servers
+ * match keys in removeByPattern. Executed by server nodes, so this class has to be on their classpath.
+ */
+public class KeyPatternFilter<V> implements IgniteBiPredicate<byte[], V> {
+
+    private static final long serialVersionUID = 1L;
+
+    private final String regex;
+
+    private transient Pattern pattern;
+
+    public KeyPatternFilter(String regex) {
+        this.regex = regex;
+    }
+
+    @Override
+    public boolean apply(byte[] key, V value) {
+        if (pattern == null) {
+            pattern = Pattern.compile(regex);
+        }
+        return matches(pattern, key);
+    }
+
+    public static boolean matches(Pattern pattern, byte[] key) {
+        return pattern.matcher(new String(key, StandardCharsets.UTF_8)).matches();
+    }
+}
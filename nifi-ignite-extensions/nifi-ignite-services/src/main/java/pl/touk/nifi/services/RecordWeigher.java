@@ -0,0 +1,77 @@
+package pl.touk.nifi.services;
+
+import com.github.benmanes.caffeine.cache.Weigher;
+import org.apache.nifi.serialization.record.Record;
+import pl.touk.nifi.services.lookup.sql.LookupSqlArgument;
+import pl.touk.nifi.services.lookup.sql.LookupSqlQuery;
+
+import java.lang.reflect.Array;
+import java.util.Collection;
+import java.util.Map;
+
+/**
+ * Estimates the heap size in bytes of cached records from their field names and values, and of their queries. The
+ * estimate is rough, but proportional to the actual size, so a cache bounded by it holds many small records or few
+ * large ones.
+ */
+class RecordWeigher implements Weigher<LookupSqlQuery, Record> {
+
+    private static final long ENTRY_OVERHEAD = 128;
+
+    private static final long FIELD_OVERHEAD = 48;
+
+    private static final long OBJECT_OVERHEAD = 16;
+
+    @Override
+    public int weigh(LookupSqlQuery query, Record record) {
+        return (int) Math.min(Integer.MAX_VALUE, ENTRY_OVERHEAD + weigh(query) + weigh(record));
+    }
+
+    static long weigh(LookupSqlQuery query) {
+        long weight = OBJECT_OVERHEAD + weighValue(query.getTableName()) + weighValue(query.getWhereClause())
+                + weighValue(query.getSelectColumns()) + weighValue(query.getContext());
+        for (LookupSqlArgument arg : query.getArgs()) {
+            weight += FIELD_OVERHEAD + weighValue(arg.getValue());
+        }
+        return weight;
+    }
+
+    static long weigh(Record record) {
+        long weight = OBJECT_OVERHEAD;
+        for (Map.Entry<String, Object> field : record.toMap().entrySet()) {
+            weight += FIELD_OVERHEAD + weighValue(field.getKey()) + weighValue(field.getValue());
+        }
+        return weight;
+    }
+
+    private static long weighValue(Object value) {
+        if (value == null) {
+            return 0;
+        } else if (value instanceof CharSequence) {
+            return 2 * OBJECT_OVERHEAD + 2L * ((CharSequence) value).length();
+        } else if (value instanceof byte[]) {
+            return OBJECT_OVERHEAD + ((byte[]) value).length;
+        } else if (value instanceof Record) {
+            return weigh((Record) value);
+        } else if (value instanceof Map) {
+            long weight = OBJECT_OVERHEAD;
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+                weight += FIELD_OVERHEAD + weighValue(entry.getKey()) + weighValue(entry.getValue());
+            }
+            return weight;
+        } else if (value instanceof Collection) {
+            long weight = OBJECT_OVERHEAD;
+            for (Object element : (Collection<?>) value) {
+                weight += 8 + weighValue(element);
+            }
+            return weight;
+        } else if (value.getClass().isArray()) {
+            long weight = OBJECT_OVERHEAD;
+            for (int i = 0; i < Array.getLength(value); i++) {
+                weight += 8 + weighValue(Array.get(value, i));
+            }
+            return weight;
+        }
+        return 2 * OBJECT_OVERHEAD;
+    }
+}
@@ -0,0 +1,148 @@
+package pl.touk.nifi.services;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiFunction;
+
+/**
+ * Coalesces single item requests of many threads into bulk requests, sent by dedicated sender threads, one bulk
+ * request at a time each. Every sender passes its own index to the bulk operation, so it can use its own client.
+ * Requests that arrive while all senders have a bulk request in flight are sent together, and the optional window
+ * delays a bulk request to gather more of them.
+ *
+ * @param <T> request item
+ * @param <R> result of a single item
+ */
+class RequestBatcher<T, R> implements AutoCloseable {
+
+    private static final long POLL_INTERVAL_MILLIS = 100;
+
+    private final BiFunction<Integer, List<T>, List<R>> bulkOperation;
+
+    private final int maxBatchSize;
+
+    private final long windowNanos;
+
+    private final BlockingQueue<Request<T, R>> queue = new LinkedBlockingQueue<>();
+
+    private final List<Thread> threads = new ArrayList<>();
+
+    private volatile boolean running = true;
+
+    /**
+     * @param bulkOperation called with the index of the sender, from zero to senders - 1, and items, returns results
+     *                      in the order of given items
+     */
+    RequestBatcher(String name, BiFunction<Integer, List<T>, List<R>> bulkOperation, int senders, int maxBatchSize, long windowMillis) {
+        this.bulkOperation = bulkOperation;
+        this.maxBatchSize = maxBatchSize;
+        this.windowNanos = TimeUnit.MILLISECONDS.toNanos(windowMillis);
+        for (int i = 0; i < senders; i++) {
+            int sender = i;
+            Thread thread = new Thread(() -> run(sender), senders == 1 ? name : name + " #" + (i + 1));
+            thread.setDaemon(true);
+            threads.add(thread);
+        }
+        threads.forEach(Thread::start);
+    }
+
+    R submit(T item) throws IOException {
+        if (!running) {
+            throw new IOException("Client is closed");
+        }
+        Request<T, R> request = new Request<>(item);
+        queue.add(request);
+        // Requests left in the queue after close are not sent
+        if (!running && queue.remove(request)) {
+            throw new IOException("Client is closed");
+        }
+        try {
+            return request.result.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for cache response", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            if (e.getCause() instanceof Error) {
+                throw (Error) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        }
+    }
+
+    @Override
+    public void close() {
+        running = false;
+        try {
+            for (Thread thread : threads) {
+                thread.join();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        List<Request<T, R>> remaining = new ArrayList<>();
+        queue.drainTo(remaining);
+        remaining.forEach(request -> request.result.completeExceptionally(new IllegalStateException("Client is closed")));
+    }
+
+    private void run(int sender) {
+        List<Request<T, R>> batch = new ArrayList<>(maxBatchSize);
+        while (running || !queue.isEmpty()) {
+            try {
+                Request<T, R> first = queue.poll(POLL_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                long deadline = System.nanoTime() + windowNanos;
+                while (batch.size() < maxBatchSize && windowNanos > 0) {
+                    Request<T, R> next = queue.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+                    if (next == null) {
+                        break;
+                    }
+                    batch.add(next);
+                }
+            } catch (InterruptedException e) {
+                running = false;
+            }
+            queue.drainTo(batch, maxBatchSize - batch.size());
+            if (!batch.isEmpty()) {
+                send(sender, batch);
+                batch.clear();
+            }
+        }
+    }
+
+    private void send(int sender, List<Request<T, R>> batch) {
+        List<T> items = new ArrayList<>(batch.size());
+        for (Request<T, R> request : batch) {
+            items.add(request.item);
+        }
+        try {
+            List<R> results = bulkOperation.apply(sender, items);
+            for (int i = 0; i < batch.size(); i++) {
+                batch.get(i).result.complete(results.get(i));
+            }
+        } catch (Throwable e) {
+            // Waiting threads are released and the sender stays alive, whatever the bulk operation threw
+            batch.forEach(request -> request.result.completeExceptionally(e));
+        }
+    }
+
+    private static class Request<T, R> {
+        private final T item;
+        private final CompletableFuture<R> result = new CompletableFuture<>();
+
+        Request(T item) {
+            this.item = item;
+        }
+    }
+}
@@ -0,0 +1,57 @@
+package pl.touk.nifi.services;
+
+import org.apache.nifi.distributed.cache.client.Serializer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Per thread buffer serialized keys and values are written to, so the only allocation per call is the exactly sized
+ * result. The buffer grows to the largest value written, but after an outlier it shrinks back to twice the average
+ * size of recent values, so a single large value is not retained by every thread.
+ */
+class SerializationBuffer extends ByteArrayOutputStream {
+
+    private static final int INITIAL_SIZE = 256;
+
+    private static final int MAX_RETAINED_SIZE = 64 * 1024;
+
+    private static final ThreadLocal<SerializationBuffer> BUFFERS = ThreadLocal.withInitial(SerializationBuffer::new);
+
+    private int averageSize = INITIAL_SIZE;
+
+    private boolean inUse;
+
+    private SerializationBuffer() {
+        super(INITIAL_SIZE);
+    }
+
+    static <T> byte[] serialize(T value, Serializer<T> serializer) throws IOException {
+        SerializationBuffer buffer = BUFFERS.get();
+        if (buffer.inUse) {
+            // Serializer calling the cache client again
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            serializer.serialize(value, out);
+            return out.toByteArray();
+        }
+        buffer.inUse = true;
+        try {
+            serializer.serialize(value, buffer);
+            return buffer.release();
+        } finally {
+            buffer.reset();
+            buffer.inUse = false;
+        }
+    }
+
+    private byte[] release() {
+        byte[] result = Arrays.copyOf(buf, count);
+        // Moving average over roughly the last 8 values
+        averageSize += (count - averageSize) >> 3;
+        if (buf.length > MAX_RETAINED_SIZE && buf.length > 4 * averageSize) {
+            buf = new byte[Math.max(INITIAL_SIZE, 2 * averageSize)];
+        }
+        return result;
+    }
+}
@@ -1,35 +1,222 @@
 package pl.touk.nifi.services.lookup.sql;
 
-import pl.touk.nifi.common.ThrowingConsumer;
-
 import java.sql.Connection;
 import java.sql.PreparedStatement;
+import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.util.List;
+import java.util.Map;
 import java.util.Objects;
 import java.util.Set;
-import java.util.function.Consumer;
+import java.util.TreeSet;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 
 public class LookupSqlQuery {
+
+    /**
+     * First column of batch queries, the position of the query in the batch its row belongs to.
+     */
+    public static final String BATCH_INDEX_COLUMN = "NIFI_LOOKUP_INDEX";
+
+    /**
+     * Prefix of the key columns, numbered from 1, that preload queries start with.
+     */
+    public static final String PRELOAD_KEY_COLUMN_PREFIX = "NIFI_LOOKUP_KEY";
+
+    private static final Pattern UNBATCHABLE_KEYWORDS = Pattern.compile(
+            "\\b(ORDER|GROUP|HAVING|FETCH|LIMIT|OFFSET|UNION|INTERSECT|EXCEPT)\\b", Pattern.CASE_INSENSITIVE);
+
     private String tableName;
     private String whereClause;
     private Set<String> selectColumns;
     private Set<LookupSqlArgument> args;
+    private Map<String, String> context;
+    private int parameterCount;
+    private boolean batchable;
 
     public LookupSqlQuery(Set<String> selectColumns, String tableName, String whereClause, Set<LookupSqlArgument> args) {
+        this(selectColumns, tableName, whereClause, args, null);
+    }
+
+    /**
+     * @param context attributes the connection for the query is obtained with, not part of the query identity. Queries
+     *                are kept in caches, so it should hold only the attributes the connection pool reads, rather than
+     *                the whole lookup context.
+     */
+    public LookupSqlQuery(Set<String> selectColumns, String tableName, String whereClause, Set<LookupSqlArgument> args,
+                          Map<String, String> context) {
         this.selectColumns = selectColumns;
         this.tableName = tableName;
         this.whereClause = whereClause;
         this.args = args;
+        this.context = context;
+        String unquotedWhereClause = stripQuoted(whereClause);
+        this.parameterCount = (int) unquotedWhereClause.chars().filter(c -> c == '?').count();
+        this.batchable = !UNBATCHABLE_KEYWORDS.matcher(unquotedWhereClause).find();
     }
 
+    private LookupSqlQuery(LookupSqlQuery template, Set<LookupSqlArgument> args) {
+        this.selectColumns = template.selectColumns;
+        this.tableName = template.tableName;
+        this.whereClause = template.whereClause;
+        this.args = args;
+        this.context = template.context;
+        this.parameterCount = template.parameterCount;
+        this.batchable = template.batchable;
+    }
+
+    public Map<String, String> getContext() {
+        return context;
+    }
+
+    public String getTableName() {
+        return tableName;
+    }
+
+    public String getWhereClause() {
+        return whereClause;
+    }
+
+    public Set<String> getSelectColumns() {
+        return selectColumns;
+    }
+
+    public Set<LookupSqlArgument> getArgs() {
+        return args;
+    }
+
+    /**
+     * Prepares the statement and binds the arguments. Queries that differ only in arguments are prepared with the same
+     * SQL text, so the statement can be reused from the statement cache of the connection.
+     */
     public PreparedStatement toStatement(Connection conn) throws SQLException {
         PreparedStatement st = conn.prepareStatement(queryStr());
-        args.forEach(
-                consumeWithSqlExceptionHandle(
-                        arg -> st.setObject(arg.getIx(), arg.getValue())));
+        try {
+            for (LookupSqlArgument arg : args) {
+                st.setObject(arg.getIx(), arg.getValue());
+            }
+        } catch (SQLException e) {
+            st.close();
+            throw e;
+        }
         return st;
     }
 
+    /**
+     * Whether the query can be a part of a batch statement. Where clauses that order, limit or group rows, or combine
+     * them with other queries, would change the meaning of the batch statement, and a union does not keep the order
+     * of rows of its parts, so such queries are looked up one by one.
+     */
+    public boolean isBatchable() {
+        return batchable;
+    }
+
+    /**
+     * Query with the same table, columns, where clause and context, and the given arguments.
+     */
+    public LookupSqlQuery withArgs(Set<LookupSqlArgument> args) {
+        return new LookupSqlQuery(this, args);
+    }
+
+    /**
+     * Prepares a single statement returning rows of all queries, as a union of the queries with their positions in
+     * the list in {@link #BATCH_INDEX_COLUMN}. Unlike OR-ed where clauses, this maps rows back to queries for any
+     * where clause. Batches of the same size are prepared with the same SQL text. Every query has to bind exactly the
+     * parameters of its where clause, as parameters of the following queries are numbered after them, and has to be
+     * {@link #isBatchable() batchable}.
+     */
+    public static PreparedStatement toBatchStatement(Connection conn, List<LookupSqlQuery> queries) throws SQLException {
+        for (LookupSqlQuery query : queries) {
+            query.checkArgs();
+        }
+        StringBuilder sql = new StringBuilder();
+        for (int i = 0; i < queries.size(); i++) {
+            if (i > 0) {
+                sql.append(" UNION ALL ");
+            }
+            LookupSqlQuery query = queries.get(i);
+            sql.append("SELECT ").append(i).append(" AS ").append(BATCH_INDEX_COLUMN).append(",")
+                    .append(query.selectColumns.isEmpty() ? query.tableName + ".*" : query.selectClause())
+                    .append(" FROM ").append(query.tableName).append(" WHERE ").append(query.whereClause);
+        }
+        PreparedStatement st = conn.prepareStatement(sql.toString());
+        try {
+            int offset = 0;
+            for (LookupSqlQuery query : queries) {
+                for (LookupSqlArgument arg : query.args) {
+                    st.setObject(offset + arg.getIx(), arg.getValue());
+                }
+                offset += query.parameterCount;
+            }
+        } catch (SQLException e) {
+            st.close();
+            throw e;
+        }
+        return st;
+    }
+
+    /**
+     * Prepares a statement returning all rows of the table, starting with the key columns as
+     * {@link #PRELOAD_KEY_COLUMN_PREFIX}1, 2, ... followed by the selected columns. Rows are fetched from the database
+     * in chunks of the fetch size rather than all at once, where the driver supports it.
+     */
+    public PreparedStatement toPreloadStatement(Connection conn, List<String> keyColumns, int fetchSize) throws SQLException {
+        StringBuilder sql = new StringBuilder("SELECT ");
+        for (int i = 0; i < keyColumns.size(); i++) {
+            sql.append(keyColumns.get(i)).append(" AS ").append(PRELOAD_KEY_COLUMN_PREFIX).append(i + 1).append(",");
+        }
+        sql.append(selectColumns.isEmpty() ? tableName + ".*" : selectClause()).append(" FROM ").append(tableName);
+        PreparedStatement st = conn.prepareStatement(sql.toString(), ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+        try {
+            st.setFetchSize(fetchSize);
+        } catch (SQLException e) {
+            st.close();
+            throw e;
+        }
+        return st;
+    }
+
+    private void checkArgs() throws SQLException {
+        if (!batchable) {
+            throw new SQLException("Where clause " + whereClause + " cannot be a part of a batch statement");
+        }
+        Set<Integer> argIndexes = args.stream().map(LookupSqlArgument::getIx).collect(Collectors.toSet());
+        Set<Integer> parameterIndexes = IntStream.rangeClosed(1, parameterCount).boxed().collect(Collectors.toSet());
+        if (!argIndexes.equals(parameterIndexes)) {
+            throw new SQLException("Lookup coordinates have arguments " + new TreeSet<>(argIndexes) + " but the where clause "
+                    + whereClause + " has " + parameterCount + " parameters");
+        }
+    }
+
+    /**
+     * The where clause without the contents of quoted literals and identifiers, so their question marks and words are
+     * not taken for parameter markers and keywords.
+     */
+    private static String stripQuoted(String whereClause) {
+        if (whereClause == null) {
+            return "";
+        }
+        StringBuilder unquoted = new StringBuilder(whereClause.length());
+        char quote = 0;
+        for (int i = 0; i < whereClause.length(); i++) {
+            char c = whereClause.charAt(i);
+            if (quote != 0) {
+                if (c == quote) {
+                    quote = 0;
+                    unquoted.append(c);
+                }
+            } else {
+                if (c == '\'' || c == '"') {
+                    quote = c;
+                }
+                unquoted.append(c);
+            }
+        }
+        return unquoted.toString();
+    }
+
     private String queryStr() {
         return "SELECT " + selectClause() + " FROM " + tableName + " WHERE " + whereClause;
     }
@@ -53,14 +240,4 @@ public class LookupSqlQuery {
     public int hashCode() {
         return Objects.hash(selectColumns, tableName, whereClause, args);
     }
-
-    private static <A> Consumer<A> consumeWithSqlExceptionHandle(ThrowingConsumer<A, SQLException> consumer) {
-        return a -> {
-            try {
-                consumer.accept(a);
-            } catch (SQLException ex) {
-                throw new RuntimeException(ex);
-            }
-        };
-    }
 }
\ No newline at end of file
@@ -1,5 +1,6 @@
 package pl.touk.nifi.services
 
+import com.github.benmanes.caffeine.cache.Ticker
 import org.apache.nifi.controller.AbstractControllerService
 import org.apache.nifi.dbcp.DBCPService
 import org.apache.nifi.lookup.LookupFailureException
@@ -17,11 +18,16 @@ import java.sql.Connection
 import java.sql.DriverManager
 import java.sql.SQLException
 import java.sql.Statement
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicLong
 
 import static org.hamcrest.CoreMatchers.instanceOf
 import static org.hamcrest.MatcherAssert.assertThat
 import static org.junit.Assert.assertEquals
 import static org.junit.Assert.assertNull
+import static org.junit.Assert.assertTrue
+import static org.junit.Assert.fail
 
 
 class DatabaseRecordLookupServiceIT {
@@ -171,8 +177,308 @@ class DatabaseRecordLookupServiceIT {
         assertEquals(0, record2.getAsInt("ID"))
     }
 
+    @Test
+    void testResourcesClosedAndQueriesCounted() {
+        final DatabaseRecordLookupService service = new DatabaseRecordLookupService()
+
+        runner.addControllerService("db-lookup-service", service)
+        runner.setProperty(service, DatabaseRecordLookupService.DBCP_SERVICE, "dbcp")
+        runner.setProperty(service, DatabaseRecordLookupService.TABLE_NAME, "TEST")
+        runner.setProperty(service, DatabaseRecordLookupService.WHERE_CLAUSE, "id = ?")
+        runner.setProperty(service, DatabaseRecordLookupService.CACHE_SIZE, "10")
+        runner.enableControllerService(service)
+
+        def dbcp = (DBCPServiceSimpleImpl) runner.getControllerService("dbcp")
+        dbcp.connections.clear()
+        for (int i = 0; i < 3; i++) {
+            assertEquals("Hello", service.lookup(Collections.singletonMap("arg1", "0")).get().getAsString("VAL2"))
+            assertEquals(EMPTY_RECORD, service.lookup(Collections.singletonMap("arg1", "2")))
+        }
+
+        // Found records are cached, missing ones are queried every time
+        assertEquals(4, service.getQueryCount())
+        assertEquals(2, service.getCacheStats().hitCount())
+        assertEquals(4, dbcp.connections.size())
+        dbcp.connections.each { assertTrue(it.isClosed()) }
+    }
+
+    @Test
+    void testBatchLookup() {
+        final DatabaseRecordLookupService service = new DatabaseRecordLookupService()
+
+        runner.addControllerService("db-lookup-service", service)
+        runner.setProperty(service, DatabaseRecordLookupService.DBCP_SERVICE, "dbcp")
+        runner.setProperty(service, DatabaseRecordLookupService.TABLE_NAME, "TEST")
+        runner.setProperty(service, DatabaseRecordLookupService.WHERE_CLAUSE, "id = ?")
+        runner.setProperty(service, DatabaseRecordLookupService.CACHE_SIZE, "10")
+        runner.setProperty(service, DatabaseRecordLookupService.LOOKUP_BATCH_SIZE, "2")
+        runner.enableControllerService(service)
+
+        List<Map<String, Object>> coordinates = ["1", "2", "1", "0", "3"].collect { Collections.singletonMap("arg1", it) as Map<String, Object> }
+        List<Optional<Record>> records = service.lookupAll(coordinates, null)
+
+        assertEquals("World", records[0].get().getAsString("VAL2"))
+        assertEquals(EMPTY_RECORD, records[1])
+        assertEquals("World", records[2].get().getAsString("VAL2"))
+        assertEquals("Hello", records[3].get().getAsString("VAL2"))
+        assertEquals(EMPTY_RECORD, records[4])
+        // Four distinct coordinates in batches of two
+        assertEquals(2, service.getQueryCount())
+        assertEquals(service.lookup(Collections.singletonMap("arg1", "0")).get().schema.fieldNames, records[0].get().schema.fieldNames)
+        assertEquals(2, service.getQueryCount())
+    }
+
+    @Test
+    void testBatchLookupWithSeveralParameters() {
+        final DatabaseRecordLookupService service = new DatabaseRecordLookupService()
+
+        runner.addControllerService("db-lookup-service", service)
+        runner.setProperty(service, DatabaseRecordLookupService.DBCP_SERVICE, "dbcp")
+        runner.setProperty(service, DatabaseRecordLookupService.TABLE_NAME, "TEST")
+        runner.setProperty(service, DatabaseRecordLookupService.WHERE_CLAUSE, "id >= ? AND val2 <> '?' AND id <= ?")
+        runner.enableControllerService(service)
+
+        List<Map<String, Object>> coordinates = [["arg1": "1", "arg2": "1"], ["arg1": "0", "arg2": "0"]]
+        List<Optional<Record>> records = service.lookupAll(coordinates, null)
+        assertEquals("World", records[0].get().getAsString("VAL2"))
+        assertEquals("Hello", records[1].get().getAsString("VAL2"))
+        assertEquals(1, service.getQueryCount())
+
+        // Coordinates without every parameter of the where clause would shift the parameters of the following ones
+        try {
+            List<Map<String, Object>> partialCoordinates = [["arg2": "1"], ["arg1": "0", "arg2": "0"]]
+            service.lookupAll(partialCoordinates, null)
+            fail("Coordinates not matching the where clause parameters should be rejected")
+        } catch (LookupFailureException e) {
+            assertEquals(1, service.getQueryCount())
+        }
+    }
+
+    @Test
+    void testBatchLookupWithOrderedWhereClause() {
+        final DatabaseRecordLookupService service = new DatabaseRecordLookupService()
+
+        runner.addControllerService("db-lookup-service", service)
+        runner.setProperty(service, DatabaseRecordLookupService.DBCP_SERVICE, "dbcp")
+        runner.setProperty(service, DatabaseRecordLookupService.TABLE_NAME, "TEST")
+        runner.setProperty(service, DatabaseRecordLookupService.WHERE_CLAUSE, "id >= ? ORDER BY id DESC")
+        runner.enableControllerService(service)
+
+        List<Map<String, Object>> coordinates = ["0", "2"].collect { Collections.singletonMap("arg1", it) as Map<String, Object> }
+        List<Optional<Record>> records = service.lookupAll(coordinates, null)
+        // Looked up one by one, with the same first row as a single lookup
+        assertEquals("World", records[0].get().getAsString("VAL2"))
+        assertEquals(EMPTY_RECORD, records[1])
+        assertEquals(2, service.getQueryCount())
+        assertEquals("World", service.lookup(Collections.singletonMap("arg1", "0")).get().getAsString("VAL2"))
+    }
+
+    @Test
+    void testRefreshServesStaleRecordWhileReloading() {
+        final DatabaseRecordLookupService service = new DatabaseRecordLookupService()
+
+        runner.addControllerService("db-lookup-service", service)
+        runner.setProperty(service, DatabaseRecordLookupService.DBCP_SERVICE, "dbcp")
+        runner.setProperty(service, DatabaseRecordLookupService.TABLE_NAME, "TEST")
+        runner.setProperty(service, DatabaseRecordLookupService.WHERE_CLAUSE, "id = ?")
+        runner.setProperty(service, DatabaseRecordLookupService.CACHE_SIZE, "10")
+        runner.setProperty(service, DatabaseRecordLookupService.CACHE_EXPIRATION, "1 h")
+        runner.setProperty(service, DatabaseRecordLookupService.CACHE_REFRESH_INTERVAL, "1 min")
+        AtomicLong nanos = new AtomicLong()
+        service.ticker = { nanos.get() } as Ticker
+        runner.enableControllerService(service)
+
+        Map<String, Object> coordinates = Collections.singletonMap("arg1", "0")
+        List<Thread> threads = (1..8).collect { Thread.start { service.lookup(coordinates) } }
+        threads*.join()
+        // Concurrent lookups of a missing entry wait for a single load
+        assertEquals(1, service.getQueryCount())
+
+        stmt.execute("UPDATE TEST SET val2 = 'Bye' WHERE id = 0")
+        nanos.addAndGet(TimeUnit.SECONDS.toNanos(30))
+        assertEquals("Hello", service.lookup(coordinates).get().getAsString("VAL2"))
+        assertEquals(1, service.getQueryCount())
+        nanos.addAndGet(TimeUnit.SECONDS.toNanos(31))
+        // The due entry is returned while it is reloaded in the background
+        assertEquals("Hello", service.lookup(coordinates).get().getAsString("VAL2"))
+
+        long deadline = System.currentTimeMillis() + 5000
+        while (service.lookup(coordinates).get().getAsString("VAL2") != "Bye" && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50)
+        }
+        assertEquals("Bye", service.lookup(coordinates).get().getAsString("VAL2"))
+        assertEquals(2, service.getQueryCount())
+    }
+
+    @Test
+    void testCacheRebuiltWhenSettingsChange() {
+        final DatabaseRecordLookupService service = new DatabaseRecordLookupService()
+
+        runner.addControllerService("db-lookup-service", service)
+        runner.setProperty(service, DatabaseRecordLookupService.DBCP_SERVICE, "dbcp")
+        runner.setProperty(service, DatabaseRecordLookupService.TABLE_NAME, "TEST")
+        runner.setProperty(service, DatabaseRecordLookupService.WHERE_CLAUSE, "id = ?")
+        runner.setProperty(service, DatabaseRecordLookupService.CACHE_SIZE, "10")
+        runner.setProperty(service, DatabaseRecordLookupService.CLEAR_CACHE_ON_ENABLED, "false")
+        runner.enableControllerService(service)
+        service.lookup(Collections.singletonMap("arg1", "0"))
+        assertEquals(1, service.getCacheWeight())
+
+        // Kept when the settings are the same
+        runner.disableControllerService(service)
+        runner.enableControllerService(service)
+        service.lookup(Collections.singletonMap("arg1", "0"))
+        assertEquals(0, service.getQueryCount())
+
+        runner.disableControllerService(service)
+        runner.setProperty(service, DatabaseRecordLookupService.MAX_CACHE_MEMORY, "1 MB")
+        runner.enableControllerService(service)
+        service.lookup(Collections.singletonMap("arg1", "0"))
+        assertEquals(1, service.getQueryCount())
+        assertTrue(service.getCacheWeight() > 1)
+    }
+
+    @Test
+    void testNegativeCaching() {
+        final DatabaseRecordLookupService service = new DatabaseRecordLookupService()
+
+        runner.addControllerService("db-lookup-service", service)
+        runner.setProperty(service, DatabaseRecordLookupService.DBCP_SERVICE, "dbcp")
+        runner.setProperty(service, DatabaseRecordLookupService.TABLE_NAME, "TEST")
+        runner.setProperty(service, DatabaseRecordLookupService.WHERE_CLAUSE, "id = ?")
+        runner.setProperty(service, DatabaseRecordLookupService.NEGATIVE_CACHE_SIZE, "10")
+        runner.setProperty(service, DatabaseRecordLookupService.NEGATIVE_CACHE_EXPIRATION, "1 h")
+        runner.enableControllerService(service)
+
+        for (int i = 0; i < 3; i++) {
+            assertEquals(EMPTY_RECORD, service.lookup(Collections.singletonMap("arg1", "2")))
+        }
+        assertEquals(1, service.getQueryCount())
+        assertEquals(2, service.getNegativeCacheStats().hitCount())
+
+        // Not found values are not queried again until they expire, also by batch lookups
+        stmt.execute("insert into TEST (id, val1, val2) VALUES (2, 2, 'Again')")
+        assertEquals(EMPTY_RECORD, service.lookup(Collections.singletonMap("arg1", "2")))
+        List<Optional<Record>> records = service.lookupAll([Collections.singletonMap("arg1", "2") as Map<String, Object>,
+                                                            Collections.singletonMap("arg1", "3") as Map<String, Object>], null)
+        assertEquals([EMPTY_RECORD, EMPTY_RECORD], records)
+        assertEquals(EMPTY_RECORD, service.lookup(Collections.singletonMap("arg1", "3")))
+        assertEquals(2, service.getQueryCount())
+    }
+
+    @Test
+    void testPreloadedTable() {
+        final DatabaseRecordLookupService service = new DatabaseRecordLookupService()
+
+        runner.addControllerService("db-lookup-service", service)
+        runner.setProperty(service, DatabaseRecordLookupService.DBCP_SERVICE, "dbcp")
+        runner.setProperty(service, DatabaseRecordLookupService.TABLE_NAME, "TEST")
+        runner.assertNotValid(service)
+        runner.setProperty(service, DatabaseRecordLookupService.LOOKUP_VALUE_COLUMNS, "val1,val2")
+        runner.setProperty(service, DatabaseRecordLookupService.PRELOAD_KEY_COLUMNS, "id")
+        runner.setProperty(service, DatabaseRecordLookupService.PRELOAD_INTERVAL, "200 millis")
+        runner.assertValid(service)
+        runner.enableControllerService(service)
+
+        assertEquals("Hello", service.lookup(Collections.singletonMap("arg1", "0")).get().getAsString("VAL2"))
+        assertEquals(["VAL1", "VAL2"], service.lookup(Collections.singletonMap("arg1", 1)).get().schema.fieldNames)
+        assertEquals(EMPTY_RECORD, service.lookup(Collections.singletonMap("arg1", "2")))
+        List<Optional<Record>> records = service.lookupAll(["1", "2"].collect { Collections.singletonMap("arg1", it) as Map<String, Object> }, null)
+        assertEquals("World", records[0].get().getAsString("VAL2"))
+        assertEquals(EMPTY_RECORD, records[1])
+
+        // Rows added to the table are found after the next reload
+        stmt.execute("insert into TEST (id, val1, val2) VALUES (2, 2, 'Again')")
+        long deadline = System.currentTimeMillis() + 5000
+        while (!service.lookup(Collections.singletonMap("arg1", "2")).isPresent() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50)
+        }
+        assertEquals("Again", service.lookup(Collections.singletonMap("arg1", "2")).get().getAsString("VAL2"))
+    }
+
+    @Test
+    void testReloadFinishedAfterDisableDropped() {
+        final DatabaseRecordLookupService service = new DatabaseRecordLookupService()
+
+        runner.addControllerService("db-lookup-service", service)
+        runner.setProperty(service, DatabaseRecordLookupService.DBCP_SERVICE, "dbcp")
+        runner.setProperty(service, DatabaseRecordLookupService.TABLE_NAME, "TEST")
+        runner.setProperty(service, DatabaseRecordLookupService.LOOKUP_VALUE_COLUMNS, "val1,val2")
+        runner.setProperty(service, DatabaseRecordLookupService.PRELOAD_KEY_COLUMNS, "id")
+        runner.setProperty(service, DatabaseRecordLookupService.PRELOAD_INTERVAL, "100 millis")
+        runner.enableControllerService(service)
+
+        // The next reload waits for the service to be disabled, ignoring the interrupt like JDBC drivers do
+        def dbcp = (DBCPServiceSimpleImpl) runner.getControllerService("dbcp")
+        CountDownLatch reloading = new CountDownLatch(1)
+        CountDownLatch disabled = new CountDownLatch(1)
+        dbcp.beforeConnection = {
+            dbcp.beforeConnection = null
+            reloading.countDown()
+            while (true) {
+                try {
+                    disabled.await()
+                    break
+                } catch (InterruptedException ignored) {
+                }
+            }
+        }
+        assertTrue(reloading.await(5, TimeUnit.SECONDS))
+        runner.disableControllerService(service)
+        disabled.countDown()
+        Thread.getAllStackTraces().keySet().findAll { it.name == "DatabaseRecordLookupService-preload-db-lookup-service" }*.join(5000)
+
+        runner.removeProperty(service, DatabaseRecordLookupService.PRELOAD_KEY_COLUMNS)
+        runner.setProperty(service, DatabaseRecordLookupService.WHERE_CLAUSE, "id = ?")
+        runner.enableControllerService(service)
+        stmt.execute("insert into TEST (id, val1, val2) VALUES (2, 2, 'Again')")
+        assertEquals("Again", service.lookup(Collections.singletonMap("arg1", "2")).get().getAsString("VAL2"))
+    }
+
+    @Test
+    void testMemoryBoundedCache() {
+        final DatabaseRecordLookupService service = new DatabaseRecordLookupService()
+
+        runner.addControllerService("db-lookup-service", service)
+        runner.setProperty(service, DatabaseRecordLookupService.DBCP_SERVICE, "dbcp")
+        runner.setProperty(service, DatabaseRecordLookupService.TABLE_NAME, "TEST")
+        runner.setProperty(service, DatabaseRecordLookupService.WHERE_CLAUSE, "id = ?")
+        runner.setProperty(service, DatabaseRecordLookupService.CACHE_SIZE, "10")
+        runner.setProperty(service, DatabaseRecordLookupService.MAX_CACHE_MEMORY, "1 MB")
+        runner.enableControllerService(service)
+
+        for (int i = 0; i < 2; i++) {
+            assertEquals("Hello", service.lookup(Collections.singletonMap("arg1", "0")).get().getAsString("VAL2"))
+            assertEquals("World", service.lookup(Collections.singletonMap("arg1", "1")).get().getAsString("VAL2"))
+        }
+        assertEquals(2, service.getQueryCount())
+        assertTrue(service.getCacheWeight() > 2)
+        assertTrue(service.getCacheWeight() < 1024 * 1024)
+    }
+
+    @Test
+    void testCachedQueriesKeepOnlyConnectionAttributes() {
+        final DatabaseRecordLookupService service = new DatabaseRecordLookupService()
+
+        runner.addControllerService("db-lookup-service", service)
+        runner.setProperty(service, DatabaseRecordLookupService.DBCP_SERVICE, "dbcp")
+        runner.setProperty(service, DatabaseRecordLookupService.TABLE_NAME, "TEST")
+        runner.setProperty(service, DatabaseRecordLookupService.WHERE_CLAUSE, "id = ?")
+        runner.setProperty(service, DatabaseRecordLookupService.CACHE_SIZE, "10")
+        runner.setProperty(service, DatabaseRecordLookupService.MAX_CACHE_MEMORY, "1 MB")
+        runner.enableControllerService(service)
+
+        Map<String, String> context = ["database.name": "test", "content": "x" * 100000]
+        assertEquals("Hello", service.lookup(Collections.singletonMap("arg1", "0"), context).get().getAsString("VAL2"))
+        assertTrue(service.getCacheWeight() < 10000)
+    }
+
     class DBCPServiceSimpleImpl extends AbstractControllerService implements DBCPService {
 
+        final List<Connection> connections = []
+
+        volatile Closure beforeConnection
+
         @Override
         String getIdentifier() {
             "dbcp"
@@ -180,9 +486,12 @@ class DatabaseRecordLookupServiceIT {
 
         @Override
         Connection getConnection() throws ProcessException {
+            beforeConnection?.call()
             try {
                 Class.forName("org.apache.derby.jdbc.EmbeddedDriver")
-                DriverManager.getConnection("jdbc:derby:${DB_LOCATION};create=true")
+                Connection connection = DriverManager.getConnection("jdbc:derby:${DB_LOCATION};create=true")
+                connections.add(connection)
+                connection
             } catch (e) {
                 throw new ProcessException("getConnection failed: " + e)
             }
@@ -1,7 +1,13 @@
 package pl.touk.nifi.services;
 
 import org.apache.ignite.Ignite;
+import org.apache.ignite.cache.CacheAtomicityMode;
+import org.apache.ignite.client.ClientCache;
+import org.apache.ignite.client.ClientException;
+import org.apache.ignite.client.IgniteClient;
+import org.apache.ignite.configuration.CacheConfiguration;
 import org.apache.ignite.configuration.ClientConnectorConfiguration;
+import org.apache.nifi.distributed.cache.client.AtomicCacheEntry;
 import org.apache.nifi.distributed.cache.client.Deserializer;
 import org.apache.nifi.distributed.cache.client.Serializer;
 import org.apache.nifi.distributed.cache.client.exception.DeserializationException;
@@ -19,6 +25,21 @@ import pl.touk.nifi.ignite.testutil.PortFinder;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.BooleanSupplier;
 
 public class IgniteDistributedMapCacheClientIT {
 
@@ -27,20 +48,24 @@ public class IgniteDistributedMapCacheClientIT {
     private final Serializer<String> stringSerializer = new StringSerializer();
     private final Deserializer<String> stringDeserializer = new StringDeserializer();
 
+    private int ignitePort;
+    private int clientConnectorPort;
     private Ignite igniteServer;
     private IgniteDistributedMapCacheClient service;
+    private TestRunner runner;
 
     @Before
     public void before() throws IOException, InitializationException {
-        int ignitePort = PortFinder.getAvailablePort();
-        int clientConnectorPort = PortFinder.getAvailablePort();
+        ignitePort = PortFinder.getAvailablePort();
+        clientConnectorPort = PortFinder.getAvailablePort();
         igniteServer = IgniteTestUtil.startServer(ignitePort, clientConnectorPort);
 
-        TestRunner runner = TestRunners.newTestRunner(TestDistributedMapCacheClientProcessor.class);
+        runner = TestRunners.newTestRunner(TestDistributedMapCacheClientProcessor.class);
         service = new IgniteDistributedMapCacheClient();
         runner.addControllerService("ignite-distributed-map-cache-client", service);
         runner.setProperty(service, IgniteDistributedMapCacheClient.SERVER_ADDRESSES, "localhost:" + clientConnectorPort);
         runner.setProperty(service, IgniteDistributedMapCacheClient.CACHE_NAME, CACHE_NAME);
+        runner.setProperty(service, IgniteDistributedMapCacheClient.ATOMICITY_MODE, "TRANSACTIONAL");
         runner.enableControllerService(service);
         runner.assertValid(service);
     }
@@ -89,10 +114,370 @@ public class IgniteDistributedMapCacheClientIT {
                 service.remove("key5", stringSerializer));
 
         // #removeByPattern
-        Assert.assertThrows(
-                "Remove by pattern is not supported",
-                UnsupportedOperationException.class,
-                () -> service.removeByPattern(""));
+        Assert.assertEquals(2, service.removeByPattern("key[34]"));
+        Assert.assertFalse(service.containsKey("key3", stringSerializer));
+        Assert.assertFalse(service.containsKey("key4", stringSerializer));
+        Assert.assertTrue(service.containsKey("key1", stringSerializer));
+    }
+
+    @Test
+    public void testRemoveByPattern() throws IOException {
+        putEntries(2500);
+        Assert.assertEquals(1000, service.removeByPattern("expired-.*"));
+        Assert.assertEquals(1500, service.keySet(stringDeserializer).size());
+
+        Map<String, String> removed = service.removeByPatternAndGet("live-1.*", stringDeserializer, stringDeserializer);
+        Assert.assertEquals(666, removed.size());
+        Assert.assertEquals("value-12", removed.get("live-12"));
+        Assert.assertNull(service.get("live-12", stringSerializer, stringDeserializer));
+        Assert.assertEquals("value-2", service.get("live-2", stringSerializer, stringDeserializer));
+    }
+
+    @Test
+    public void testRemoveByPatternFilteredOnServer() throws IOException {
+        runner.disableControllerService(service);
+        runner.setProperty(service, IgniteDistributedMapCacheClient.SERVER_SIDE_PATTERN_FILTER, "true");
+        runner.setProperty(service, IgniteDistributedMapCacheClient.SCAN_PAGE_SIZE, "100");
+        runner.enableControllerService(service);
+
+        putEntries(2500);
+        Assert.assertEquals(1000, service.removeByPattern("expired-.*"));
+        Set<String> keys = new HashSet<>();
+        service.forEachKey(stringDeserializer, keys::add);
+        Assert.assertEquals(1500, keys.size());
+        Assert.assertTrue(keys.stream().allMatch(key -> key.startsWith("live-")));
+    }
+
+    @Test
+    public void testNearCache() throws Exception {
+        runner.disableControllerService(service);
+        runner.setProperty(service, IgniteDistributedMapCacheClient.NEAR_CACHE_SIZE, "100");
+        runner.setProperty(service, IgniteDistributedMapCacheClient.NEAR_CACHE_EXPIRATION, "1 sec");
+        runner.enableControllerService(service);
+
+        service.put("key1", "value1", stringSerializer, stringSerializer);
+        Assert.assertEquals("value1", service.get("key1", stringSerializer, stringDeserializer));
+
+        // Writes by other clients are visible once the near cache entry expires
+        byte[] key1 = "key1".getBytes(StandardCharsets.UTF_8);
+        igniteServer.<byte[], byte[]>cache(CACHE_NAME).put(key1, "remote".getBytes(StandardCharsets.UTF_8));
+        Assert.assertEquals("value1", service.get("key1", stringSerializer, stringDeserializer));
+        Thread.sleep(1500);
+        Assert.assertEquals("remote", service.get("key1", stringSerializer, stringDeserializer));
+
+        // Writes through this client are visible immediately
+        service.put("key1", "value2", stringSerializer, stringSerializer);
+        Assert.assertEquals("value2", service.get("key1", stringSerializer, stringDeserializer));
+        Assert.assertTrue(service.remove("key1", stringSerializer));
+        Assert.assertNull(service.get("key1", stringSerializer, stringDeserializer));
+        Assert.assertFalse(service.containsKey("key1", stringSerializer));
+
+        // Fetched revisions are never taken from the near cache
+        service.put("key2", "value1", stringSerializer, stringSerializer);
+        igniteServer.<byte[], byte[]>cache(CACHE_NAME).put("key2".getBytes(StandardCharsets.UTF_8), "remote".getBytes(StandardCharsets.UTF_8));
+        AtomicCacheEntry<String, String, byte[]> entry = service.fetch("key2", stringSerializer, stringDeserializer);
+        Assert.assertEquals("remote", entry.getValue());
+        entry.setValue("value2");
+        Assert.assertTrue(service.replace(entry, stringSerializer, stringSerializer));
+        Assert.assertEquals("value2", service.get("key2", stringSerializer, stringDeserializer));
+    }
+
+    @Test
+    public void testNearCacheNotStaleAfterConcurrentWrites() throws Exception {
+        runner.disableControllerService(service);
+        runner.setProperty(service, IgniteDistributedMapCacheClient.NEAR_CACHE_SIZE, "100");
+        runner.setProperty(service, IgniteDistributedMapCacheClient.NEAR_CACHE_EXPIRATION, "10 mins");
+        runner.enableControllerService(service);
+
+        int writes = 500;
+        AtomicBoolean writing = new AtomicBoolean(true);
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<?>> readers = new ArrayList<>();
+            for (int t = 0; t < 4; t++) {
+                readers.add(executor.submit(() -> {
+                    while (writing.get()) {
+                        service.get("key1", stringSerializer, stringDeserializer);
+                    }
+                    return null;
+                }));
+            }
+            for (int i = 1; i <= writes; i++) {
+                service.put("key1", "value" + i, stringSerializer, stringSerializer);
+            }
+            writing.set(false);
+            for (Future<?> reader : readers) {
+                reader.get();
+            }
+        } finally {
+            executor.shutdown();
+        }
+        // Values read before a write completed are never kept after it
+        Assert.assertEquals("value" + writes, service.get("key1", stringSerializer, stringDeserializer));
+
+        Assert.assertEquals(1, service.removeByPattern("key.*"));
+        Assert.assertNull(service.get("key1", stringSerializer, stringDeserializer));
+    }
+
+    @Test
+    public void testNearCacheInvalidatedOnlyForWrittenKey() throws IOException {
+        runner.disableControllerService(service);
+        runner.setProperty(service, IgniteDistributedMapCacheClient.NEAR_CACHE_SIZE, "100");
+        runner.enableControllerService(service);
+
+        byte[] key = "key2".getBytes(StandardCharsets.UTF_8);
+        byte[] value = "value2".getBytes(StandardCharsets.UTF_8);
+        long stamp = service.getNearStamp(key);
+        // A write of another key during the read does not keep the value read out of the near cache
+        service.put("key1", "value1", stringSerializer, stringSerializer);
+        service.putNear(key, value, stamp);
+        Assert.assertArrayEquals(value, service.getNear(key));
+
+        service.put("key2", "value3", stringSerializer, stringSerializer);
+        service.putNear(key, value, stamp);
+        Assert.assertNull(service.getNear(key));
+    }
+
+    private void putEntries(int count) throws IOException {
+        Map<String, String> entries = new HashMap<>();
+        for (int i = 0; i < count; i++) {
+            entries.put((i % 5 < 2 ? "expired-" : "live-") + i, "value-" + i);
+        }
+        service.putAll(entries, stringSerializer, stringSerializer);
+    }
+
+    @Test
+    public void testBulkOperations() throws IOException {
+        Map<String, String> entries = new HashMap<>();
+        for (int i = 0; i < 100; i++) {
+            entries.put("key" + i, "value" + i);
+        }
+        service.putAll(entries, stringSerializer, stringSerializer);
+        Assert.assertEquals("value42", service.get("key42", stringSerializer, stringDeserializer));
+
+        Set<String> keys = new HashSet<>(Arrays.asList("key1", "key99", "missing"));
+        Map<String, String> subMap = service.subMap(keys, stringSerializer, stringDeserializer);
+        Assert.assertEquals(3, subMap.size());
+        Assert.assertEquals("value1", subMap.get("key1"));
+        Assert.assertEquals("value99", subMap.get("key99"));
+        Assert.assertNull(subMap.get("missing"));
+
+        service.removeAll(new HashSet<>(Arrays.asList("key1", "key2")), stringSerializer);
+        Assert.assertFalse(service.containsKey("key1", stringSerializer));
+        Assert.assertFalse(service.containsKey("key2", stringSerializer));
+        Assert.assertTrue(service.containsKey("key3", stringSerializer));
+
+        Assert.assertEquals("value3", service.removeAndGet("key3", stringSerializer, stringDeserializer));
+        Assert.assertNull(service.removeAndGet("key3", stringSerializer, stringDeserializer));
+    }
+
+    @Test
+    public void testConcurrentSingleKeyCalls() throws Exception {
+        runConcurrentSingleKeyCalls();
+    }
+
+    @Test
+    public void testClientPool() throws Exception {
+        runner.disableControllerService(service);
+        Set<Integer> batchClients = ConcurrentHashMap.newKeySet();
+        service = new IgniteDistributedMapCacheClient() {
+            @Override
+            protected ClientCache<byte[], byte[]> getCache(int clientIndex) {
+                batchClients.add(clientIndex);
+                return super.getCache(clientIndex);
+            }
+        };
+        runner.addControllerService("pooled-ignite-distributed-map-cache-client", service);
+        runner.setProperty(service, IgniteDistributedMapCacheClient.SERVER_ADDRESSES, "localhost:" + clientConnectorPort);
+        runner.setProperty(service, IgniteDistributedMapCacheClient.CACHE_NAME, CACHE_NAME);
+        runner.setProperty(service, IgniteDistributedMapCacheClient.ATOMICITY_MODE, "TRANSACTIONAL");
+        runner.setProperty(service, IgniteDistributedMapCacheClient.CLIENT_POOL_SIZE, "3");
+        runner.setProperty(service, IgniteDistributedMapCacheClient.PARTITION_AWARENESS, "true");
+        runner.setProperty(service, IgniteDistributedMapCacheClient.TIMEOUT, "10 secs");
+        runner.enableControllerService(service);
+        Assert.assertEquals(3, service.getIgniteClients().size());
+
+        runConcurrentSingleKeyCalls();
+        // Batched calls are sent by every client of the pool
+        Assert.assertEquals(new HashSet<>(Arrays.asList(0, 1, 2)), batchClients);
+        runReplaceUnderContention();
+    }
+
+    private void runConcurrentSingleKeyCalls() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(16);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int t = 0; t < 16; t++) {
+                int thread = t;
+                futures.add(executor.submit(() -> {
+                    for (int i = 0; i < 200; i++) {
+                        String key = "key-" + thread + "-" + i;
+                        service.put(key, "value" + i, stringSerializer, stringSerializer);
+                        Assert.assertEquals("value" + i, service.get(key, stringSerializer, stringDeserializer));
+                        Assert.assertTrue(service.containsKey(key, stringSerializer));
+                        Assert.assertNull(service.get(key + "-missing", stringSerializer, stringDeserializer));
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } finally {
+            executor.shutdown();
+        }
+        Assert.assertEquals(16 * 200, igniteServer.cache(CACHE_NAME).size());
+    }
+
+    @Test
+    public void testAsyncCalls() throws Exception {
+        int count = 2000;
+        List<CompletableFuture<Void>> puts = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            puts.add(service.putAsync("key-" + i, "value" + i, stringSerializer, stringSerializer));
+        }
+        CompletableFuture.allOf(puts.toArray(new CompletableFuture[0])).get(30, TimeUnit.SECONDS);
+        Assert.assertEquals(count, igniteServer.cache(CACHE_NAME).size());
+
+        List<CompletableFuture<String>> gets = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            gets.add(service.getAsync("key-" + i, stringSerializer, stringDeserializer));
+        }
+        for (int i = 0; i < count; i++) {
+            Assert.assertEquals("value" + i, gets.get(i).get(30, TimeUnit.SECONDS));
+        }
+
+        Assert.assertFalse(service.putIfAbsentAsync("key-1", "other", stringSerializer, stringSerializer).get());
+        Assert.assertTrue(service.containsKeyAsync("key-1", stringSerializer).get());
+        Assert.assertTrue(service.removeAsync("key-1", stringSerializer).get());
+        Assert.assertFalse(service.containsKeyAsync("key-1", stringSerializer).get());
+        Assert.assertNull(service.getAsync("key-1", stringSerializer, stringDeserializer).get());
+    }
+
+    @Test
+    public void testReconnectAfterClusterRestart() throws Exception {
+        runner.disableControllerService(service);
+        runner.setProperty(service, IgniteDistributedMapCacheClient.HEALTH_CHECK_INTERVAL, "200 millis");
+        runner.setProperty(service, IgniteDistributedMapCacheClient.RECONNECT_INITIAL_BACKOFF, "100 millis");
+        runner.setProperty(service, IgniteDistributedMapCacheClient.RECONNECT_MAX_BACKOFF, "1 sec");
+        runner.setProperty(service, IgniteDistributedMapCacheClient.TIMEOUT, "2 secs");
+        runner.enableControllerService(service);
+        service.put("key1", "value1", stringSerializer, stringSerializer);
+        List<IgniteClient> clients = service.getIgniteClients();
+
+        igniteServer.close();
+        waitUntil(() -> !isAvailable());
+        long start = System.nanoTime();
+        try {
+            service.get("key1", stringSerializer, stringDeserializer);
+            Assert.fail("Calls should fail while the cluster is unreachable");
+        } catch (ClientException e) {
+            Assert.assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(1));
+        }
+
+        igniteServer = IgniteTestUtil.startServer(ignitePort, clientConnectorPort);
+        waitUntil(this::isAvailable);
+        Assert.assertNotSame(clients, service.getIgniteClients());
+        // The cache is created again on the restarted cluster
+        Assert.assertNull(service.get("key1", stringSerializer, stringDeserializer));
+        service.put("key1", "value2", stringSerializer, stringSerializer);
+        Assert.assertEquals("value2", service.get("key1", stringSerializer, stringDeserializer));
+    }
+
+    private boolean isAvailable() {
+        try {
+            service.getIgniteClients();
+            return true;
+        } catch (ClientException e) {
+            return false;
+        }
+    }
+
+    private static void waitUntil(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(30);
+        while (!condition.getAsBoolean()) {
+            Assert.assertTrue("Timed out waiting for condition", System.nanoTime() < deadline);
+            Thread.sleep(50);
+        }
+    }
+
+    @Test
+    public void testFetchAndReplace() throws IOException {
+        Assert.assertNull(service.fetch("key1", stringSerializer, stringDeserializer));
+
+        // Without a revision the entry is put only if absent
+        Assert.assertTrue(service.replace(new AtomicCacheEntry<>("key1", "value1", null), stringSerializer, stringSerializer));
+        Assert.assertFalse(service.replace(new AtomicCacheEntry<>("key1", "value2", null), stringSerializer, stringSerializer));
+
+        AtomicCacheEntry<String, String, byte[]> entry = service.fetch("key1", stringSerializer, stringDeserializer);
+        Assert.assertEquals("value1", entry.getValue());
+        AtomicCacheEntry<String, String, byte[]> staleEntry = service.fetch("key1", stringSerializer, stringDeserializer);
+
+        entry.setValue("value2");
+        Assert.assertTrue(service.replace(entry, stringSerializer, stringSerializer));
+        staleEntry.setValue("value3");
+        Assert.assertFalse(service.replace(staleEntry, stringSerializer, stringSerializer));
+        Assert.assertEquals("value2", service.get("key1", stringSerializer, stringDeserializer));
+    }
+
+    @Test
+    public void testReplaceRequiresTransactionalCache() throws IOException {
+        runner.disableControllerService(service);
+        runner.setProperty(service, IgniteDistributedMapCacheClient.CACHE_NAME, "atomic-cache");
+        runner.removeProperty(service, IgniteDistributedMapCacheClient.ATOMICITY_MODE);
+        runner.enableControllerService(service);
+        Assert.assertEquals(CacheAtomicityMode.ATOMIC,
+                igniteServer.cache("atomic-cache").getConfiguration(CacheConfiguration.class).getAtomicityMode());
+        // The misconfiguration is reported when the service is enabled, not only on the first replace
+        Assert.assertTrue(runner.getControllerServiceLogger("ignite-distributed-map-cache-client").getWarnMessages().stream()
+                .anyMatch(message -> message.getMsg().contains("atomic-cache is ATOMIC")));
+
+        service.put("key1", "value1", stringSerializer, stringSerializer);
+        AtomicCacheEntry<String, String, byte[]> entry = service.fetch("key1", stringSerializer, stringDeserializer);
+        entry.setValue("value2");
+        try {
+            service.replace(entry, stringSerializer, stringSerializer);
+            Assert.fail("Replacing a fetched entry should require a TRANSACTIONAL cache");
+        } catch (IOException e) {
+            Assert.assertEquals("value1", service.get("key1", stringSerializer, stringDeserializer));
+        }
+    }
+
+    @Test
+    public void testReplaceUnderContention() throws Exception {
+        runReplaceUnderContention();
+    }
+
+    private void runReplaceUnderContention() throws Exception {
+        int threads = 8;
+        int increments = 100;
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                futures.add(executor.submit(() -> {
+                    for (int i = 0; i < increments; i++) {
+                        boolean replaced;
+                        do {
+                            AtomicCacheEntry<String, String, byte[]> entry = service.fetch("counter", stringSerializer, stringDeserializer);
+                            if (entry == null) {
+                                entry = new AtomicCacheEntry<>("counter", "1", null);
+                            } else {
+                                entry.setValue(String.valueOf(Integer.parseInt(entry.getValue()) + 1));
+                            }
+                            replaced = service.replace(entry, stringSerializer, stringSerializer);
+                        } while (!replaced);
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } finally {
+            executor.shutdown();
+        }
+        Assert.assertEquals(String.valueOf(threads * increments), service.get("counter", stringSerializer, stringDeserializer));
     }
 
     private static class StringSerializer implements Serializer<String> {
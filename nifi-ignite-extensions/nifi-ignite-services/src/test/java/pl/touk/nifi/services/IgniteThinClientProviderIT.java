@@ -0,0 +1,96 @@
+package pl.touk.nifi.services;
+
+import org.apache.ignite.Ignite;
+import org.apache.nifi.distributed.cache.client.Deserializer;
+import org.apache.nifi.distributed.cache.client.Serializer;
+import org.apache.nifi.reporting.InitializationException;
+import org.apache.nifi.util.TestRunner;
+import org.apache.nifi.util.TestRunners;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import pl.touk.nifi.ignite.testutil.IgniteTestUtil;
+import pl.touk.nifi.ignite.testutil.PortFinder;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+public class IgniteThinClientProviderIT {
+
+    private final Serializer<String> stringSerializer = (value, output) -> output.write(value.getBytes(StandardCharsets.UTF_8));
+    private final Deserializer<String> stringDeserializer = input -> input == null ? null : new String(input, StandardCharsets.UTF_8);
+
+    private Ignite igniteServer;
+    private IgniteThinClientProvider provider;
+    private IgniteDistributedMapCacheClient firstCache;
+    private IgniteDistributedMapCacheClient secondCache;
+    private TestRunner runner;
+
+    @Before
+    public void before() throws IOException, InitializationException {
+        int ignitePort = PortFinder.getAvailablePort();
+        int clientConnectorPort = PortFinder.getAvailablePort();
+        igniteServer = IgniteTestUtil.startServer(ignitePort, clientConnectorPort);
+
+        runner = TestRunners.newTestRunner(TestDistributedMapCacheClientProcessor.class);
+        provider = new IgniteThinClientProvider();
+        runner.addControllerService("ignite-client-provider", provider);
+        runner.setProperty(provider, IgniteThinClientProvider.SERVER_ADDRESSES, "localhost:" + clientConnectorPort);
+        runner.setProperty(provider, IgniteThinClientProvider.CLIENT_POOL_SIZE, "2");
+        runner.enableControllerService(provider);
+
+        firstCache = addCacheClient("first-cache");
+        secondCache = addCacheClient("second-cache");
+    }
+
+    @After
+    public void after() throws Exception {
+        igniteServer.close();
+    }
+
+    @Test
+    public void testSharedClients() throws IOException {
+        Assert.assertNull(provider.getIgniteClients());
+
+        runner.enableControllerService(firstCache);
+        runner.enableControllerService(secondCache);
+        Assert.assertEquals(2, provider.getIgniteClients().size());
+        Assert.assertSame(provider.getIgniteClients(), firstCache.getIgniteClients());
+        Assert.assertSame(provider.getIgniteClients(), secondCache.getIgniteClients());
+
+        firstCache.put("key", "first", stringSerializer, stringSerializer);
+        secondCache.put("key", "second", stringSerializer, stringSerializer);
+        Assert.assertEquals("first", firstCache.get("key", stringSerializer, stringDeserializer));
+        Assert.assertEquals("second", secondCache.get("key", stringSerializer, stringDeserializer));
+
+        // Clients are closed only when released by the last service
+        runner.disableControllerService(firstCache);
+        Assert.assertNotNull(provider.getIgniteClients());
+        Assert.assertEquals("second", secondCache.get("key", stringSerializer, stringDeserializer));
+        runner.disableControllerService(secondCache);
+        Assert.assertNull(provider.getIgniteClients());
+
+        runner.enableControllerService(firstCache);
+        Assert.assertEquals("first", firstCache.get("key", stringSerializer, stringDeserializer));
+        runner.disableControllerService(firstCache);
+        runner.disableControllerService(provider);
+    }
+
+    @Test
+    public void testAddressesOrProviderRequired() throws InitializationException {
+        IgniteDistributedMapCacheClient cache = new IgniteDistributedMapCacheClient();
+        runner.addControllerService("unconfigured-cache", cache);
+        runner.setProperty(cache, IgniteDistributedMapCacheClient.CACHE_NAME, "cache");
+        runner.assertNotValid(cache);
+    }
+
+    private IgniteDistributedMapCacheClient addCacheClient(String cacheName) throws InitializationException {
+        IgniteDistributedMapCacheClient cache = new IgniteDistributedMapCacheClient();
+        runner.addControllerService(cacheName + "-client", cache);
+        runner.setProperty(cache, IgniteDistributedMapCacheClient.CLIENT_PROVIDER, "ignite-client-provider");
+        runner.setProperty(cache, IgniteDistributedMapCacheClient.CACHE_NAME, cacheName);
+        runner.assertValid(cache);
+        return cache;
+    }
+}
@@ -0,0 +1,30 @@
+package pl.touk.nifi.services;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Collectors;
+
+public class RequestBatcherTest {
+
+    @Test(timeout = 10000)
+    public void testSenderSurvivesErrorOfBulkOperation() throws IOException {
+        AtomicBoolean failed = new AtomicBoolean();
+        try (RequestBatcher<Integer, Integer> batcher = new RequestBatcher<>("Test Batcher", (sender, items) -> {
+            if (failed.compareAndSet(false, true)) {
+                throw new AssertionError("Bulk operation failed");
+            }
+            return items.stream().map(item -> item * 2).collect(Collectors.toList());
+        }, 1, 10, 0)) {
+            try {
+                batcher.submit(1);
+                Assert.fail("Error of the bulk operation should be propagated");
+            } catch (AssertionError e) {
+                Assert.assertEquals("Bulk operation failed", e.getMessage());
+            }
+            Assert.assertEquals(Integer.valueOf(4), batcher.submit(2));
+        }
+    }
+}